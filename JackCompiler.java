@@ -1,42 +1,600 @@
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.Reader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.Writer;
+import java.net.BindException;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import lib.*;
 
 public class JackCompiler {
+    // bump whenever the emitted code changes, so that cached outputs are not reused
+    public static final String VERSION = "1.2";
+
+    private static final String USAGE = "Usage: JackCompiler [-j <threads>] [--mmap] [--cache] [--rebuild] [--watch] [--binary] [-O] [--intern-strings] [--dce] [--inline] [--parallel-codegen] [--source-map] [-d <output directory>] <input file or directory>\n"
+            + "       JackCompiler --daemon <socket>\n"
+            + "       JackCompiler --connect <socket> [--time] <arguments as above>";
+
+    // where a program starts; both are roots of the call graph, as Sys.init calls Main.main anyway
+    private static final String[] ENTRY_POINTS = { "Sys.init", "Main.main" };
+
+    // how long the directory has to stay quiet before changed files are recompiled
+    private static final long WATCH_DEBOUNCE_MILLIS = 100;
+
+    private static class Options {
+        String input;
+        int jobs = 1;
+        boolean mmap = false;
+        boolean cache = false;
+        boolean rebuild = false;
+        boolean watch = false;
+        boolean binary = false;
+        boolean optimize = false;
+        boolean internStrings = false;
+        boolean dce = false;
+        boolean inline = false;
+        boolean parallelCodegen = false;
+        boolean sourceMap = false;
+        File outputDirectory;
+
+        // relative paths are taken from here; null for the process's own directory
+        File workingDirectory;
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+
+        // returns null if the arguments are not valid
+        static Options parse(String[] args) {
+            Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-j") && i + 1 < args.length) {
+                    try {
+                        options.jobs = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    // 0 means one worker per available core
+                    if (options.jobs == 0) {
+                        options.jobs = Runtime.getRuntime().availableProcessors();
+                    }
+                } else if (args[i].equals("--mmap")) {
+                    options.mmap = true;
+                } else if (args[i].equals("--cache")) {
+                    options.cache = true;
+                } else if (args[i].equals("--rebuild")) {
+                    // throws the cache away and fills it again
+                    options.cache = true;
+                    options.rebuild = true;
+                } else if (args[i].equals("--watch")) {
+                    options.watch = true;
+                } else if (args[i].equals("--binary")) {
+                    options.binary = true;
+                } else if (args[i].equals("-O")) {
+                    options.optimize = true;
+                } else if (args[i].equals("--intern-strings")) {
+                    options.internStrings = true;
+                } else if (args[i].equals("--dce")) {
+                    options.dce = true;
+                } else if (args[i].equals("--inline")) {
+                    options.inline = true;
+                } else if (args[i].equals("--parallel-codegen")) {
+                    options.parallelCodegen = true;
+                } else if (args[i].equals("--source-map")) {
+                    options.sourceMap = true;
+                } else if (args[i].equals("-d") && i + 1 < args.length) {
+                    options.outputDirectory = new File(args[++i]);
+                } else if (options.input == null && !args[i].startsWith("-")) {
+                    options.input = args[i];
+                } else {
+                    return null;
+                }
+            }
+
+            if (options.input == null || options.jobs < 0) {
+                return null;
+            }
+
+            return options;
+        }
+
+        File resolve(File path) {
+            return path.isAbsolute() || workingDirectory == null ? path : new File(workingDirectory, path.getPath());
+        }
+
+        // A file of the input as the user named it, for messages. Through the
+        // daemon the input was resolved against the client's directory, which
+        // the command line compiler wouldn't show.
+        String display(File file) {
+            File given = new File(input);
+            String resolved = resolve(given).getPath();
+            String path = file.getPath();
+
+            if (workingDirectory != null && path.startsWith(resolved)) {
+                return given.getPath() + path.substring(resolved.length());
+            }
+            return path;
+        }
+
+        // modes that need every class of the program before anything is written
+        boolean wholeProgram() {
+            return dce || inline;
+        }
+
+        // everything that changes the emitted code
+        String compilerKey() {
+            return VERSION + (binary ? " binary" : "") + (optimize ? " -O" : "")
+                    + (internStrings ? " intern-strings" : "");
+        }
+    }
+
+    // generates subroutine bodies for --parallel-codegen; separate from the pool
+    // files are compiled on, since those threads wait for its results
+    private static ExecutorService codegenPool;
+
+    // created by the first run that asks for it, sized for that run
+    private static synchronized ExecutorService codegenPool(int jobs) {
+        if (codegenPool == null) {
+            int threads = jobs > 1 ? jobs : Runtime.getRuntime().availableProcessors();
+            codegenPool = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return codegenPool;
+    }
+
     public static void main(String[] args) throws Exception {
-        if (args.length != 1) {
-            System.out.println("Usage: JackCompiler <input file or directory>");
+        if (args.length == 2 && args[0].equals("--daemon")) {
+            serve(Path.of(args[1]));
             return;
         }
 
-        File inputPath = new File(args[0]);
+        if (args.length > 2 && args[0].equals("--connect")) {
+            // reported by the client, so it isn't passed on to the daemon
+            boolean time = args[2].equals("--time");
+            int first = time ? 3 : 2;
+            System.exit(connect(Path.of(args[1]), Arrays.copyOfRange(args, first, args.length), time));
+            return;
+        }
+
+        int status = run(args, null, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    // Keeps the compiler warm for clients that connect to socket, until killed.
+    private static void serve(Path socket) throws IOException {
+        CompileServer server = new CompileServer(socket, (args, workingDirectory, out, err) -> {
+            for (String arg : args) {
+                if (arg.equals("--watch")) {
+                    err.println("--watch can't be used through the daemon");
+                    return 1;
+                }
+            }
+            return run(args, workingDirectory, out, err);
+        });
+
+        try {
+            server.bind();
+        } catch (BindException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.out.println("Listening on " + socket);
+        server.serve();
+    }
+
+    // Has the daemon at socket do the compile, or does it here if no daemon is running.
+    private static int connect(Path socket, String[] args, boolean time) throws Exception {
+        SocketChannel channel;
+        try {
+            channel = CompileClient.connect(socket);
+        } catch (IOException e) {
+            return run(args, null, System.out, System.err);
+        }
+
+        try (channel) {
+            return CompileClient.run(channel, args, System.out, System.err, time ? System.err : null);
+        }
+    }
+
+    // Compiles as asked by the command line args and returns the exit status.
+    // Doesn't return in --watch mode.
+    private static int run(String[] args, File workingDirectory, PrintStream out, PrintStream err) throws Exception {
+        Options options = Options.parse(args);
+
+        if (options == null) {
+            out.println(USAGE);
+            // asking with no arguments at all isn't a mistake
+            return args.length == 0 ? 0 : 1;
+        }
+
+        options.workingDirectory = workingDirectory;
+        options.out = out;
+        options.err = err;
+
+        File inputPath = options.resolve(new File(options.input));
         File[] jackFiles;
 
         if (inputPath.isDirectory()) {
             jackFiles = inputPath.listFiles((dir, name) -> name.endsWith(".jack"));
+            // fixed order so that diagnostics read the same between runs
+            Arrays.sort(jackFiles);
         } else if (inputPath.isFile() && inputPath.getName().endsWith(".jack")) {
             jackFiles = new File[] { inputPath };
         } else {
-            System.out.println("Input must be a jack file or a directory containing jack files.");
-            System.exit(1);
-            return;
+            out.println("Input must be a jack file or a directory containing jack files.");
+            return 1;
+        }
+
+        if (options.wholeProgram() && !inputPath.isDirectory()) {
+            out.println("--dce and --inline need a directory, so that every class of the program is seen.");
+            return 1;
+        }
+
+        if (options.sourceMap && options.binary) {
+            out.println("--source-map needs text output, so it can't be used with --binary.");
+            return 1;
+        }
+
+        if (options.outputDirectory != null) {
+            File given = options.outputDirectory;
+            options.outputDirectory = options.resolve(given);
+            options.outputDirectory.mkdirs();
+            if (!options.outputDirectory.isDirectory()) {
+                out.println("Can't create the output directory " + given);
+                return 1;
+            }
+        }
+
+        BuildCache cache = null;
+        // the output of a class depends on the whole program, which the cache can't
+        // tell; and the cache keeps no source maps
+        if (options.cache && !options.wholeProgram() && !options.sourceMap) {
+            File sourceDirectory = inputPath.isDirectory() ? inputPath : inputPath.getAbsoluteFile().getParentFile();
+            cache = new BuildCache(sourceDirectory, options.compilerKey(), options.rebuild);
+        }
+
+        int failed = build(jackFiles, options, cache);
+
+        if (cache != null) {
+            cache.save(inputPath.isDirectory() ? Arrays.asList(jackFiles) : null);
+        }
+
+        if (options.watch) {
+            watch(inputPath, options, cache);
+        }
+
+        return failed > 0 ? 1 : 0;
+    }
+
+    // Recompiles .jack files as they change, until the process is killed. Events
+    // are collected until the directory has been quiet for WATCH_DEBOUNCE_MILLIS
+    // so that an editor writing a file in several steps triggers one compile.
+    private static void watch(File inputPath, Options options, BuildCache cache) throws Exception {
+        Path directory = (inputPath.isDirectory() ? inputPath : inputPath.getAbsoluteFile().getParentFile()).toPath();
+        String onlyFile = inputPath.isDirectory() ? null : inputPath.getName();
+
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+
+            options.out.println("Watching " + directory + " for changes");
+
+            while (true) {
+                TreeSet<File> changed = new TreeSet<>();
+                WatchKey key = watchService.take();
+
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, look at every file watched again
+                            if (onlyFile != null) {
+                                changed.add(directory.resolve(onlyFile).toFile());
+                            } else {
+                                File[] all = directory.toFile().listFiles((dir, name) -> name.endsWith(".jack"));
+                                changed.addAll(Arrays.asList(all));
+                            }
+                            continue;
+                        }
+
+                        String name = event.context().toString();
+                        if (name.endsWith(".jack") && (onlyFile == null || onlyFile.equals(name))) {
+                            changed.add(directory.resolve(name).toFile());
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll(WATCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                List<File> jackFiles = new ArrayList<>();
+                for (File jackFile : changed) {
+                    if (jackFile.isFile()) {
+                        jackFiles.add(jackFile);
+                    } else {
+                        // source deleted, so is its output
+                        outputFile(jackFile, options).delete();
+                        mapFile(jackFile, options).delete();
+                        if (cache != null) {
+                            cache.forget(jackFile);
+                        }
+                    }
+                }
+
+                if (options.wholeProgram() && !changed.isEmpty()) {
+                    // any change can affect what other classes inline or keep
+                    jackFiles = Arrays.asList(directory.toFile().listFiles((dir, name) -> name.endsWith(".jack")));
+                    jackFiles.sort(null);
+                }
+
+                if (!jackFiles.isEmpty()) {
+                    long start = System.nanoTime();
+                    int failed = build(jackFiles.toArray(new File[0]), options, cache);
+                    long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                    options.out.println("Compiled " + (jackFiles.size() - failed) + " of " + jackFiles.size()
+                            + " changed file(s) in " + millis + " ms");
+                }
+
+                if (cache != null) {
+                    cache.save(null);
+                }
+            }
+        }
+    }
+
+    // Returns the number of files that failed.
+    private static int build(File[] jackFiles, Options options, BuildCache cache) throws Exception {
+        if (options.wholeProgram()) {
+            return compileProgram(jackFiles, options);
+        }
+        return compileAll(jackFiles, options, jackFile -> compileFile(jackFile, options, cache));
+    }
+
+    private interface FileCompiler {
+        void compile(File jackFile) throws Exception;
+    }
+
+    // Compiles every file, each in isolation, and reports failures in input order.
+    // Returns the number of files that failed.
+    private static int compileAll(File[] jackFiles, Options options, FileCompiler compiler) throws InterruptedException {
+        List<Throwable> failures = new ArrayList<>();
+
+        if (options.jobs <= 1 || jackFiles.length <= 1) {
+            for (File jackFile : jackFiles) {
+                try {
+                    compiler.compile(jackFile);
+                    failures.add(null);
+                } catch (Exception | Error e) {
+                    failures.add(e);
+                }
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(options.jobs, jackFiles.length));
+            List<Future<Void>> results = new ArrayList<>();
+
+            try {
+                for (File jackFile : jackFiles) {
+                    results.add(pool.submit(() -> {
+                        compiler.compile(jackFile);
+                        return null;
+                    }));
+                }
+
+                for (Future<Void> result : results) {
+                    try {
+                        result.get();
+                        failures.add(null);
+                    } catch (ExecutionException e) {
+                        failures.add(e.getCause());
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        int failed = 0;
+        for (int i = 0; i < jackFiles.length; i++) {
+            Throwable failure = failures.get(i);
+            if (failure instanceof CompilationException) {
+                for (Diagnostic diagnostic : ((CompilationException) failure).getDiagnostics()) {
+                    options.err.println(options.display(jackFiles[i]) + ":" + diagnostic);
+                }
+                failed++;
+            } else if (failure != null) {
+                options.err.println(options.display(jackFiles[i]) + ": " + failure.getMessage());
+                failed++;
+            }
+        }
+
+        return failed;
+    }
+
+    // Compiles every class into memory first, so that calls can be inlined
+    // across classes and subroutines nothing reaches can be left out.
+    private static int compileProgram(File[] jackFiles, Options options) throws Exception {
+        Map<File, VMBuffer> classes = new ConcurrentHashMap<>();
+
+        int failed = compileAll(jackFiles, options, jackFile -> {
+            CompilerContext context = CompilerContext.acquire();
+            try {
+                VMBuffer code = new VMBuffer();
+                compile(context, jackFile, options, code);
+                classes.put(jackFile, code);
+            } finally {
+                context.release();
+            }
+        });
+
+        if (options.inline) {
+            Inliner inliner = new Inliner();
+            for (VMBuffer code : classes.values()) {
+                inliner.add(code);
+            }
+            classes.replaceAll((jackFile, code) -> inliner.inline(code));
+        }
+
+        Set<String> reachable = null;
+        if (options.dce) {
+            CallGraph callGraph = new CallGraph();
+            for (VMBuffer code : classes.values()) {
+                callGraph.add(code);
+            }
+
+            reachable = callGraph.reachableFrom(ENTRY_POINTS);
+            if (reachable.isEmpty() && callGraph.size() > 0) {
+                options.err.println("No " + String.join(" or ", ENTRY_POINTS) + " to start the program from");
+                return failed + 1;
+            }
+        }
+
+        CompilerContext context = CompilerContext.acquire();
+        try {
+            writeProgram(jackFiles, classes, reachable, options, context);
+        } finally {
+            context.release();
         }
 
+        return failed;
+    }
+
+    private static void writeProgram(File[] jackFiles, Map<File, VMBuffer> classes, Set<String> reachable,
+            Options options, CompilerContext context) throws IOException {
         for (File jackFile : jackFiles) {
-            String outputFile = jackFile.getAbsolutePath().replaceAll("\\.jack$", ".vm");
-            try (
-                    Reader input = new BufferedReader(new FileReader(jackFile));
-                    Writer output = new BufferedWriter(new FileWriter(outputFile))) {
+            VMBuffer code = classes.get(jackFile);
+            if (code == null) {
+                // failed; like compileFile, don't leave the output of an earlier compile behind
+                outputFile(jackFile, options).delete();
+                mapFile(jackFile, options).delete();
+                continue;
+            }
+
+            SourceMap sourceMap = options.sourceMap ? new SourceMap() : null;
 
-                CompilationEngine compilationEngine = new CompilationEngine(input, output);
-                compilationEngine.compileClass();
+            try (OutputStream output = new FileOutputStream(outputFile(jackFile, options))) {
+                VMWriter vmWriter = openWriter(context, output, options);
+                vmWriter.setSourceMap(sourceMap);
+                if (options.optimize && options.inline) {
+                    // inlined bodies open up more to optimize
+                    vmWriter = context.optimizer(vmWriter);
+                }
+
+                CallGraph.write(code, vmWriter, reachable);
+            }
+
+            if (sourceMap != null) {
+                writeSourceMap(jackFile, options, sourceMap);
             }
         }
     }
-}
\ No newline at end of file
+
+    private static File outputFile(File jackFile, Options options) {
+        String extension = options.binary ? ".vmb" : ".vm";
+        if (options.outputDirectory != null) {
+            return new File(options.outputDirectory, jackFile.getName().replaceAll("\\.jack$", extension));
+        }
+        return new File(jackFile.getAbsolutePath().replaceAll("\\.jack$", extension));
+    }
+
+    private static File mapFile(File jackFile, Options options) {
+        return new File(outputFile(jackFile, options).getPath() + ".map");
+    }
+
+    private static void writeSourceMap(File jackFile, Options options, SourceMap sourceMap) throws IOException {
+        try (Writer output = new BufferedWriter(new FileWriter(mapFile(jackFile, options)))) {
+            sourceMap.write(output);
+        }
+    }
+
+    // output needn't be buffered, the writers have buffers of their own
+    private static VMWriter openWriter(CompilerContext context, OutputStream output, Options options)
+            throws IOException {
+        return options.binary ? context.binaryWriter(output) : context.textWriter(output);
+    }
+
+    private static void compileFile(File jackFile, Options options, BuildCache cache) throws Exception {
+        File outputFile = outputFile(jackFile, options);
+
+        if (cache != null && cache.restore(jackFile, outputFile)) {
+            return;
+        }
+
+        SourceMap sourceMap = options.sourceMap ? new SourceMap() : null;
+        // moved into place once complete, for runs sharing the tree (and its cache)
+        File partial = BuildCache.partialFile(outputFile);
+        CompilerContext context = CompilerContext.acquire();
+        boolean ok = false;
+
+        try (OutputStream output = new FileOutputStream(partial)) {
+            VMWriter vmWriter = openWriter(context, output, options);
+            vmWriter.setSourceMap(sourceMap);
+            compile(context, jackFile, options, vmWriter);
+            ok = true;
+        } finally {
+            context.release();
+            // don't leave the output of an earlier compile behind for a class that failed
+            if (!ok) {
+                partial.delete();
+                outputFile.delete();
+                mapFile(jackFile, options).delete();
+                if (cache != null) {
+                    cache.forget(jackFile);
+                }
+            }
+        }
+
+        Files.move(partial.toPath(), outputFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        if (sourceMap != null) {
+            writeSourceMap(jackFile, options, sourceMap);
+        }
+
+        if (cache != null) {
+            cache.store(jackFile, outputFile);
+        }
+    }
+
+    private static void compile(CompilerContext context, File jackFile, Options options, VMWriter vmWriter)
+            throws Exception {
+        SourceBuffer source = options.mmap ? SourceBuffer.map(jackFile) : context.read(jackFile);
+
+        if (options.optimize) {
+            vmWriter = context.optimizer(vmWriter);
+        }
+
+        CompilationEngine compilationEngine = context.compilationEngine(source, vmWriter);
+        compilationEngine.setFoldConstants(options.optimize);
+        compilationEngine.setInternStrings(options.internStrings);
+        compilationEngine.setExecutor(options.parallelCodegen ? codegenPool(options.jobs) : null);
+        compilationEngine.compileClass();
+    }
+}
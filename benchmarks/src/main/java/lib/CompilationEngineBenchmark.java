@@ -0,0 +1,62 @@
+package lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end compileClass() from source text to VM code written to a null
+ * writer. The lines counter is reported as source lines/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompilationEngineBenchmark {
+    @Param({ "50", "1000", "10000", "100000" })
+    public int lines;
+
+    private char[] source;
+    private int sourceLines;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long lines;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            lines = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        String text = JackCorpus.generate("Bench", lines);
+        source = text.toCharArray();
+        sourceLines = JackCorpus.countLines(text);
+    }
+
+    @Benchmark
+    public void compileClass(Counters counters) throws IOException {
+        CompilationEngine engine = new CompilationEngine(SourceBuffer.of(source, source.length), Writer.nullWriter());
+        engine.compileClass();
+        counters.lines += sourceLines;
+    }
+}
@@ -0,0 +1,75 @@
+package lib;
+
+/**
+ * Generates synthetic but valid jack classes of roughly a given number of
+ * lines. The output only depends on the requested size, so every run
+ * benchmarks exactly the same input.
+ */
+final class JackCorpus {
+    private JackCorpus() {
+    }
+
+    static String generate(String className, int lines) {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("/** Synthetic benchmark class of about ").append(lines).append(" lines. */\n");
+        sb.append("class ").append(className).append(" {\n");
+        sb.append("    field int f0, f1, f2;\n");
+        sb.append("    field Array data;\n");
+        sb.append("    static int s0, s1;\n");
+        sb.append("\n");
+        sb.append("    constructor ").append(className).append(" new(int n) {\n");
+        sb.append("        let data = Array.new(n);\n");
+        sb.append("        let f0 = n;\n");
+        sb.append("        return this;\n");
+        sb.append("    }\n");
+
+        int lineCount = 12;
+        for (int i = 0; lineCount < lines; i++) {
+            int c = (i * 7919) % 1000;
+
+            sb.append("\n");
+            sb.append("    // method number ").append(i).append("\n");
+            sb.append("    method int m").append(i).append("(int a, int b) {\n");
+            sb.append("        var int x, y, k;\n");
+            sb.append("        var String s;\n");
+            sb.append("        let x = a + (b * ").append(c).append(");\n");
+            sb.append("        let y = 0;\n");
+            sb.append("        let k = 0;\n");
+            sb.append("        /* loop over the data array */\n");
+            sb.append("        while (k < a) {\n");
+            sb.append("            if ((x > y) & ~(k = ").append(c).append(")) {\n");
+            sb.append("                let data[k] = data[k] + x - y;\n");
+            sb.append("            } else {\n");
+            sb.append("                let y = y + Math.max(x, ").append(c).append(");\n");
+            sb.append("            }\n");
+            sb.append("            let k = k + 1;\n");
+            sb.append("        }\n");
+            sb.append("        let s = \"value ").append(i).append("\";\n");
+            sb.append("        do Output.printString(s);\n");
+            if (i > 0) {
+                sb.append("        let f0 = f0 + m").append(i - 1).append("(x, y);\n");
+            } else {
+                sb.append("        let s0 = s0 + x;\n");
+            }
+            sb.append("        return x;\n");
+            sb.append("    }\n");
+
+            lineCount += 22;
+        }
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    static int countLines(String source) {
+        int lines = 0;
+        for (int i = 0; i < source.length(); i++) {
+            if (source.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+}
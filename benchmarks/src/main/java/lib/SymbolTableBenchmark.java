@@ -0,0 +1,78 @@
+package lib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Symbol table define and lookup costs for a subroutine-sized table. Scores
+ * are symbols/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SymbolTableBenchmark {
+    private static final int SYMBOLS = 32;
+
+    @Param({ "8", "32" })
+    public int size;
+
+    private String[] names;
+    private final SymbolTable symbolTable = new SymbolTable();
+
+    @Setup
+    public void setup() {
+        names = new String[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            names[i] = "name" + i;
+        }
+
+        symbolTable.reset();
+        for (int i = 0; i < size; i++) {
+            symbolTable.define(names[i], "int", i % 2 == 0 ? Kind.VAR : Kind.ARG);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SYMBOLS)
+    public int define() {
+        symbolTable.reset();
+        for (int i = 0; i < SYMBOLS; i++) {
+            symbolTable.define(names[i], "int", i % 2 == 0 ? Kind.VAR : Kind.ARG);
+        }
+        return symbolTable.varCount(Kind.VAR);
+    }
+
+    // resolves a name the way the compilation engine does for every variable reference
+    @Benchmark
+    @OperationsPerInvocation(SYMBOLS)
+    public int lookup() {
+        int sum = 0;
+        for (int i = 0; i < SYMBOLS; i++) {
+            SymbolTable.Symbol symbol = symbolTable.lookup(names[i]);
+            if (symbol != null) {
+                sum += symbol.index + symbol.type.length();
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int varCount() {
+        return symbolTable.varCount(Kind.VAR) + symbolTable.varCount(Kind.ARG);
+    }
+}
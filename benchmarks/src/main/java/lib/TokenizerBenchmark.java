@@ -0,0 +1,65 @@
+package lib;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tokenizer throughput. The tokens counter is reported as tokens/sec next to
+ * the per-file score.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenizerBenchmark {
+    @Param({ "50", "1000", "10000", "100000" })
+    public int lines;
+
+    private char[] source;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        source = JackCorpus.generate("Bench", lines).toCharArray();
+    }
+
+    @Benchmark
+    public int advance(Counters counters) throws IOException {
+        JackTokenizer tokenizer = new JackTokenizer(source, source.length);
+        int n = 0;
+
+        while (tokenizer.hasMoreTokens()) {
+            tokenizer.advance();
+            n++;
+        }
+
+        counters.tokens += n;
+        return n;
+    }
+}
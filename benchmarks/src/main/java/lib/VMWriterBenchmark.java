@@ -0,0 +1,60 @@
+package lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * VM emission alone, with a typical instruction mix written to a null
+ * writer. Scores are instructions/sec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VMWriterBenchmark {
+    private static final int INSTRUCTIONS = 1000 * 10;
+
+    private final VMWriter vmWriter = new VMWriter(Writer.nullWriter());
+    private final String[] functionNames = new String[16];
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < functionNames.length; i++) {
+            functionNames[i] = "Bench.m" + i;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS)
+    public void emit() throws IOException {
+        for (int i = 0; i < INSTRUCTIONS / 10; i++) {
+            vmWriter.setIndentationSize(0);
+            vmWriter.writeFunction(functionNames[i & 15], 3);
+            vmWriter.setIndentationSize(4);
+            vmWriter.writePush(Segment.ARGUMENT, 1);
+            vmWriter.writePush(Segment.CONSTANT, i);
+            vmWriter.writeArithmetic(Command.ADD);
+            vmWriter.writePop(Segment.LOCAL, 2);
+            vmWriter.writeLabel("Bench_12");
+            vmWriter.writeIf("Bench_13");
+            vmWriter.writeCall("Math.multiply", 2);
+            vmWriter.writeGoto("Bench_12");
+            vmWriter.writeReturn();
+        }
+    }
+}
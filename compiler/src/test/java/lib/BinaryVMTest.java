@@ -0,0 +1,130 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class BinaryVMTest {
+    private static final String SOURCE = String.join("\n",
+            "class Counter {",
+            "    static int instances;",
+            "    field int count;",
+            "    field Array history;",
+            "    constructor Counter new(int start) {",
+            "        let count = start;",
+            "        let history = Array.new(10);",
+            "        let instances = instances + 1;",
+            "        return this;",
+            "    }",
+            "    method void step(int by) {",
+            "        var int i;",
+            "        while (i < by) {",
+            "            if (count > 100) {",
+            "                let count = -count;",
+            "            } else {",
+            "                let history[i] = count * 3;",
+            "            }",
+            "            let i = i + 1;",
+            "        }",
+            "        do Output.printString(\"done\");",
+            "        return;",
+            "    }",
+            "}");
+
+    private static String text() throws IOException {
+        StringWriter output = new StringWriter();
+        CompilationEngine compilationEngine = new CompilationEngine(
+                SourceBuffer.of(SOURCE.toCharArray(), SOURCE.length()), new VMWriter(output));
+        compilationEngine.compileClass();
+        return output.toString();
+    }
+
+    private static byte[] binary() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CompilationEngine compilationEngine = new CompilationEngine(
+                SourceBuffer.of(SOURCE.toCharArray(), SOURCE.length()), new BinaryVMWriter(output));
+        compilationEngine.compileClass();
+        return output.toByteArray();
+    }
+
+    private static String toText(byte[] stream) throws IOException {
+        StringWriter output = new StringWriter();
+        BinaryVMReader.toText(new ByteArrayInputStream(stream), output);
+        return output.toString();
+    }
+
+    // a stream with the right header followed by commands
+    private static byte[] stream(int... commands) {
+        byte[] stream = Arrays.copyOf(BinaryVMWriter.MAGIC, BinaryVMWriter.MAGIC.length + 1 + commands.length);
+        stream[BinaryVMWriter.MAGIC.length] = (byte) BinaryVMWriter.FORMAT_VERSION;
+        for (int i = 0; i < commands.length; i++) {
+            stream[BinaryVMWriter.MAGIC.length + 1 + i] = (byte) commands[i];
+        }
+        return stream;
+    }
+
+    @Test
+    void readsBackTheTextOutput() throws IOException {
+        assertEquals(text(), toText(binary()));
+    }
+
+    @Test
+    void reportsTruncatedStreams() throws IOException {
+        byte[] stream = binary();
+        String text = text();
+
+        // cut at every byte: either the cut falls between two commands, and
+        // what comes back is the start of the text, or it is reported
+        for (int length = 0; length < stream.length; length++) {
+            byte[] truncated = Arrays.copyOf(stream, length);
+            try {
+                String partial = toText(truncated);
+                assertTrue(length > BinaryVMWriter.MAGIC.length && text.startsWith(partial),
+                        "cut at " + length + " read back " + partial);
+            } catch (EOFException e) {
+                // expected
+            }
+        }
+
+        assertThrows(EOFException.class, () -> toText(new byte[0]));
+        assertThrows(EOFException.class, () -> toText(Arrays.copyOf(stream, BinaryVMWriter.MAGIC.length)));
+    }
+
+    @Test
+    void reportsABadHeader() {
+        byte[] badMagic = stream(Opcode.RETURN);
+        badMagic[0] = 'X';
+        assertThrows(StreamCorruptedException.class, () -> toText(badMagic));
+
+        byte[] badVersion = stream(Opcode.RETURN);
+        badVersion[BinaryVMWriter.MAGIC.length] = (byte) (BinaryVMWriter.FORMAT_VERSION + 1);
+        assertThrows(StreamCorruptedException.class, () -> toText(badVersion));
+    }
+
+    @Test
+    void reportsCorruptCommands() {
+        int constant = Segment.CONSTANT.ordinal();
+
+        assertThrows(StreamCorruptedException.class, () -> toText(stream(Opcode.RETURN + 1)));
+        assertThrows(StreamCorruptedException.class, () -> toText(stream(Opcode.PUSH, Segment.values().length, 0)));
+        // more than five bytes, and five that come out negative
+        assertThrows(StreamCorruptedException.class,
+                () -> toText(stream(Opcode.PUSH, constant, 0x80, 0x80, 0x80, 0x80, 0x80, 0x01)));
+        assertThrows(StreamCorruptedException.class,
+                () -> toText(stream(Opcode.PUSH, constant, 0xFF, 0xFF, 0xFF, 0xFF, 0x0F)));
+        // a name id that hasn't been defined, and a name far too long to allocate
+        assertThrows(StreamCorruptedException.class, () -> toText(stream(Opcode.LABEL, 1)));
+        assertThrows(StreamCorruptedException.class,
+                () -> toText(stream(Opcode.LABEL, 0, 0xFF, 0xFF, 0xFF, 0xFF, 0x07)));
+    }
+}
@@ -0,0 +1,125 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+class ConstantFoldingTest {
+    // Compiles "return <expression>;" with constant folding and returns the
+    // code between the function declaration and the return.
+    private static String fold(String expression) throws IOException {
+        String source = "class Main { function int f(int x, Array a) { return " + expression + "; } }";
+        StringWriter output = new StringWriter();
+
+        CompilationEngine compilationEngine = new CompilationEngine(
+                SourceBuffer.of(source.toCharArray(), source.length()), new VMWriter(output));
+        compilationEngine.setFoldConstants(true);
+        compilationEngine.compileClass();
+
+        String code = output.toString();
+        return code.substring(code.indexOf('\n') + 1, code.lastIndexOf("    return\n"));
+    }
+
+    private static String listing(String... lines) {
+        return String.join("\n", lines) + "\n";
+    }
+
+    @Test
+    void writesMinusThirtyTwoThousandSevenHundredSixtyEightAsAComplement() throws IOException {
+        // 32768 can't be pushed
+        String minimum = listing(
+                "    push constant 32767",
+                "    not");
+
+        assertEquals(minimum, fold("-32767 - 1"));
+        assertEquals(minimum, fold("32767 + 1"));
+        assertEquals(minimum, fold("-(-32767 - 1)"));
+    }
+
+    @Test
+    void wrapsAroundLikeTheVm() throws IOException {
+        // 90000 - 65536
+        assertEquals(listing("    push constant 24464"), fold("300 * 300"));
+        // 40000 - 65536
+        assertEquals(listing(
+                "    push constant 25536",
+                "    neg"), fold("20000 + 20000"));
+        assertEquals(listing("    push constant 0"), fold("256 * 256"));
+    }
+
+    @Test
+    void dividesConstantsTowardsZero() throws IOException {
+        assertEquals(listing("    push constant 14"), fold("100 / 7"));
+        assertEquals(listing(
+                "    push constant 3",
+                "    neg"), fold("-7 / 2"));
+        // left to Math.divide, which reports the error at run time
+        assertEquals(listing(
+                "    push constant 1",
+                "    push constant 0",
+                "    call Math.divide 2"), fold("1 / 0"));
+    }
+
+    @Test
+    void multiplyingByZeroStillCallsAnImpureOperand() throws IOException {
+        assertEquals(listing("    push constant 0"), fold("x * 0"));
+        assertEquals(listing(
+                "    call Main.g 0",
+                "    push constant 0",
+                "    and"), fold("Main.g() * 0"));
+        assertEquals(listing(
+                "    push argument 0",
+                "    call Main.h 1",
+                "    push constant 0",
+                "    and"), fold("0 * Main.h(x)"));
+    }
+
+    @Test
+    void doublesAVariableWithoutTemp() throws IOException {
+        assertEquals(listing(
+                "    push argument 0",
+                "    push argument 0",
+                "    add",
+                "    pop temp 1",
+                "    push temp 1",
+                "    push temp 1",
+                "    add"), fold("x * 4"));
+    }
+
+    @Test
+    void nestedDoublingsDontShareTemp() throws IOException {
+        // each doubling is finished, its value on the stack and temp 1 free,
+        // before the next one stores into temp 1
+        assertEquals(listing(
+                "    push constant 1",
+                "    push argument 1",
+                "    add",
+                "    pop pointer 1",
+                "    push that 0",
+                "    pop temp 1",
+                "    push temp 1",
+                "    push temp 1",
+                "    add",
+                "    push constant 2",
+                "    push argument 1",
+                "    add",
+                "    pop pointer 1",
+                "    push that 0",
+                "    pop temp 1",
+                "    push temp 1",
+                "    push temp 1",
+                "    add",
+                "    pop temp 1",
+                "    push temp 1",
+                "    push temp 1",
+                "    add",
+                "    add",
+                "    pop temp 1",
+                "    push temp 1",
+                "    push temp 1",
+                "    add"), fold("((a[1] * 2) + (a[2] * 4)) * 2"));
+    }
+}
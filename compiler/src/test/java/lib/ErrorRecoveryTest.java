@@ -0,0 +1,57 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class ErrorRecoveryTest {
+    private static List<String> diagnostics(String source) {
+        CompilationException e = assertThrows(CompilationException.class,
+                () -> new MemoryCompiler().compile(source));
+        return e.getDiagnostics().stream().map(Diagnostic::toString).collect(Collectors.toList());
+    }
+
+    @Test
+    void reportsStrayCharactersWhereTheyAre() {
+        String source = String.join("\n",
+                "class Main {",
+                "  function int main() {",
+                "    var int x;",
+                "    let x = 1 # 2;",
+                "    return x @;",
+                "  }",
+                "}");
+
+        assertEquals(List.of(
+                "4:15: Unexpected character '#'",
+                "4:17: ; expected, got 2",
+                "5:14: Unexpected character '@'"), diagnostics(source));
+    }
+
+    @Test
+    void skipsAStrayCharacterBetweenTokens() {
+        String source = "class Main { function void main() { return; $ } }";
+
+        assertEquals(List.of("1:45: Unexpected character '$'"), diagnostics(source));
+    }
+
+    @Test
+    void goesOnAfterASyntaxError() {
+        String source = String.join("\n",
+                "class Main {",
+                "  function void main() {",
+                "    let = 1;",
+                "    do Output.printInt(y);",
+                "    return;",
+                "  }",
+                "}");
+
+        assertEquals(List.of(
+                "3:9: Identifier expected",
+                "4:24: Undefined variable 'y'"), diagnostics(source));
+    }
+}
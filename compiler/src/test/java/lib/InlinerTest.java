@@ -0,0 +1,193 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class InlinerTest {
+    private static VMBuffer compile(String source) throws IOException {
+        VMBuffer code = new VMBuffer();
+        new CompilationEngine(SourceBuffer.of(source.toCharArray(), source.length()), code).compileClass();
+        return code;
+    }
+
+    private static String text(VMBuffer code) throws IOException {
+        StringWriter output = new StringWriter();
+        VMWriter vmWriter = new VMWriter(output);
+        code.replay(vmWriter);
+        vmWriter.flush();
+        return output.toString();
+    }
+
+    // the VM code of every class, as written without --inline
+    private static List<String> plain(String... sources) throws IOException {
+        List<String> texts = new ArrayList<>();
+        for (String source : sources) {
+            texts.add(text(compile(source)));
+        }
+        return texts;
+    }
+
+    // the VM code of every class, with calls inlined across all of them
+    private static List<String> inlined(String... sources) throws IOException {
+        List<VMBuffer> classes = new ArrayList<>();
+        Inliner inliner = new Inliner();
+        for (String source : sources) {
+            VMBuffer code = compile(source);
+            classes.add(code);
+            inliner.add(code);
+        }
+
+        List<String> texts = new ArrayList<>();
+        for (VMBuffer code : classes) {
+            texts.add(text(inliner.inline(code)));
+        }
+        return texts;
+    }
+
+    private static String listing(String... lines) {
+        return String.join("\n", lines) + "\n";
+    }
+
+    private static final String POINT = String.join("\n",
+            "class Point {",
+            "    field int x, y;",
+            "    method int getX() { return x; }",
+            "    method void setX(int value) { let x = value; return; }",
+            "    method int sum() { return getX() + y; }",
+            "}");
+
+    @Test
+    void inlinesMethodsThroughThat() throws IOException {
+        String main = "class Main { function int f(Point p) { do p.setX(3); return p.getX(); } }";
+
+        assertEquals(listing(
+                "function Main.f 0",
+                "    push argument 0",
+                "    push constant 3",
+                "    call Point.setX 2",
+                "    pop temp 0",
+                "    push argument 0",
+                "    call Point.getX 1",
+                "    return"), plain(main, POINT).get(0));
+
+        // the object goes to pointer 1, its argument to temp; the result of
+        // setX was thrown away, so it isn't pushed at all
+        assertEquals(listing(
+                "function Main.f 0",
+                "    push argument 0",
+                "    push constant 3",
+                "    pop temp 1",
+                "    pop pointer 1",
+                "    push temp 1",
+                "    pop that 0",
+                "    push argument 0",
+                "    pop pointer 1",
+                "    push that 0",
+                "    return"), inlined(main, POINT).get(0));
+    }
+
+    @Test
+    void inlinesAMethodCalledOnThisThroughThis() throws IOException {
+        String plainSum = listing(
+                "function Point.sum 0",
+                "    push argument 0",
+                "    pop pointer 0",
+                "    push pointer 0",
+                "    call Point.getX 1",
+                "    push this 1",
+                "    add",
+                "    return");
+        String inlinedSum = listing(
+                "function Point.sum 0",
+                "    push argument 0",
+                "    pop pointer 0",
+                "    push this 0",
+                "    push this 1",
+                "    add",
+                "    return");
+
+        assertTrue(plain(POINT).get(0).endsWith(plainSum));
+        assertTrue(inlined(POINT).get(0).endsWith(inlinedSum));
+    }
+
+    @Test
+    void keepsBodiesThatUseStaticsInTheirClass() throws IOException {
+        String counter = String.join("\n",
+                "class Counter {",
+                "    static int count;",
+                "    function int count() { return count; }",
+                "    function int twice() { return Counter.count() + Counter.count(); }",
+                "}");
+        String main = "class Main { function int f() { return Counter.count(); } }";
+
+        List<String> plain = plain(counter, main);
+        List<String> inlined = inlined(counter, main);
+
+        // Main can't reach Counter's statics
+        assertEquals(plain.get(1), inlined.get(1));
+        assertEquals(listing(
+                "function Counter.count 0",
+                "    push static 0",
+                "    return",
+                "function Counter.twice 0",
+                "    push static 0",
+                "    push static 0",
+                "    add",
+                "    return"), inlined.get(0));
+    }
+
+    @Test
+    void leavesBodiesOverTheSizeLimitAlone() throws IOException {
+        // Inliner.MAX_BODY_SIZE commands, and one more
+        String limits = String.join("\n",
+                "class Limits {",
+                "    function int eight(int a) { return -(a + a + a + a); }",
+                "    function int nine(int a) { return a + a + a + a + a; }",
+                "}");
+        String main = "class Main { function int f() { return Limits.eight(1) + Limits.nine(2); } }";
+
+        String inlined = inlined(limits, main).get(1);
+
+        assertNotEquals(plain(limits, main).get(1), inlined);
+        assertFalse(inlined.contains("call Limits.eight"));
+        assertTrue(inlined.contains("call Limits.nine 1"));
+    }
+
+    @Test
+    void leavesCallsWithTooManyArgumentsAlone() throws IOException {
+        // arguments are kept in temp 0 to temp 7
+        String limits = String.join("\n",
+                "class Limits {",
+                "    function int eight(int a, int b, int c, int d, int e, int f, int g, int h) { return h; }",
+                "    function int nine(int a, int b, int c, int d, int e, int f, int g, int h, int i) { return i; }",
+                "}");
+        String eight = "class Main { function int f() { return Limits.eight(1, 2, 3, 4, 5, 6, 7, 8); } }";
+        String nine = "class Main { function int f() { return Limits.nine(1, 2, 3, 4, 5, 6, 7, 8, 9); } }";
+
+        String inlinedEight = inlined(limits, eight).get(1);
+        assertNotEquals(plain(limits, eight).get(1), inlinedEight);
+        assertFalse(inlinedEight.contains("call Limits.eight"));
+        assertTrue(inlinedEight.endsWith(listing(
+                "    pop temp 7",
+                "    pop temp 6",
+                "    pop temp 5",
+                "    pop temp 4",
+                "    pop temp 3",
+                "    pop temp 2",
+                "    pop temp 1",
+                "    pop temp 0",
+                "    push temp 7",
+                "    return")));
+
+        assertEquals(plain(limits, nine).get(1), inlined(limits, nine).get(1));
+    }
+}
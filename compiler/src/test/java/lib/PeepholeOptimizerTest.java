@@ -0,0 +1,256 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+class PeepholeOptimizerTest {
+    // Runs a listing in the compiler's text layout through the optimizer and
+    // returns the listing that comes out.
+    private static String optimize(String... listing) throws IOException {
+        StringWriter output = new StringWriter();
+        PeepholeOptimizer optimizer = new PeepholeOptimizer(new VMWriter(output));
+
+        for (String line : listing) {
+            write(optimizer, line.trim().split(" "));
+        }
+        optimizer.flush();
+
+        return output.toString();
+    }
+
+    private static void write(VMWriter vmWriter, String[] command) throws IOException {
+        switch (command[0]) {
+            case "push":
+                vmWriter.writePush(Segment.valueOf(command[1].toUpperCase()), Integer.parseInt(command[2]));
+                break;
+            case "pop":
+                vmWriter.writePop(Segment.valueOf(command[1].toUpperCase()), Integer.parseInt(command[2]));
+                break;
+            case "label":
+                vmWriter.writeLabel(command[1]);
+                break;
+            case "goto":
+                vmWriter.writeGoto(command[1]);
+                break;
+            case "if-goto":
+                vmWriter.writeIf(command[1]);
+                break;
+            case "call":
+                vmWriter.writeCall(command[1], Integer.parseInt(command[2]));
+                break;
+            case "function":
+                vmWriter.writeFunction(command[1], Integer.parseInt(command[2]));
+                vmWriter.setIndentationSize(4);
+                break;
+            case "return":
+                vmWriter.writeReturn();
+                break;
+            default:
+                vmWriter.writeArithmetic(Command.valueOf(command[0].toUpperCase()));
+                break;
+        }
+    }
+
+    private static String listing(String... lines) {
+        return String.join("\n", lines) + "\n";
+    }
+
+    @Test
+    void cancelsDoubleNotAndNeg() throws IOException {
+        assertEquals(listing(
+                "function Main.f 2",
+                "    push local 0",
+                "    pop local 1",
+                "    push local 1",
+                "    return"),
+                optimize(
+                "function Main.f 2",
+                "    push local 0",
+                "    not",
+                "    not",
+                "    pop local 1",
+                "    push local 1",
+                "    neg",
+                "    neg",
+                "    return"));
+    }
+
+    @Test
+    void foldsConstantConditions() throws IOException {
+        // if (false) { ... } disappears, while (true) { ... } loses its test and
+        // with it the code after the loop
+        assertEquals(listing(
+                "function Main.f 0",
+                "label Main_2_loop",
+                "    call Main.g 0",
+                "    pop temp 0",
+                "    goto Main_2_loop"),
+                optimize(
+                "function Main.f 0",
+                "    push constant 0",
+                "    not",
+                "    if-goto Main_1",
+                "    call Main.h 0",
+                "    pop temp 0",
+                "    goto Main_0",
+                "label Main_1",
+                "label Main_0",
+                "label Main_2",
+                "    push constant 1",
+                "    neg",
+                "    not",
+                "    if-goto Main_3",
+                "    call Main.g 0",
+                "    pop temp 0",
+                "    goto Main_2",
+                "label Main_3",
+                "    push constant 0",
+                "    return"));
+    }
+
+    @Test
+    void invertsBranchesOnComparisons() throws IOException {
+        // if (x < 1) { let x = 1; } else { let x = 2; }
+        assertEquals(listing(
+                "function Main.f 1",
+                "    push local 0",
+                "    push constant 1",
+                "    lt",
+                "    if-goto Main_1",
+                "    push constant 2",
+                "    pop local 0",
+                "    goto Main_0",
+                "label Main_1",
+                "    push constant 1",
+                "    pop local 0",
+                "label Main_0",
+                "    push constant 0",
+                "    return"),
+                optimize(
+                "function Main.f 1",
+                "    push local 0",
+                "    push constant 1",
+                "    lt",
+                "    not",
+                "    if-goto Main_1",
+                "    push constant 1",
+                "    pop local 0",
+                "    goto Main_0",
+                "label Main_1",
+                "    push constant 2",
+                "    pop local 0",
+                "label Main_0",
+                "    push constant 0",
+                "    return"));
+    }
+
+    @Test
+    void leavesBranchesOnOtherValuesAlone() throws IOException {
+        // if (x) { ... } else { ... }: "not; if-goto" jumps unless x is -1, a bare
+        // "if-goto" on anything but 0, so swapping the branches would change 1
+        String[] code = {
+                "function Main.f 1",
+                "    push local 0",
+                "    not",
+                "    if-goto Main_1",
+                "    push constant 1",
+                "    pop local 0",
+                "    goto Main_0",
+                "label Main_1",
+                "    push constant 2",
+                "    pop local 0",
+                "label Main_0",
+                "    push constant 0",
+                "    return" };
+
+        assertEquals(listing(code), optimize(code));
+    }
+
+    @Test
+    void rotatesLoopsOnComparisons() throws IOException {
+        // while (x < 10) { let x = x + 1; }
+        assertEquals(listing(
+                "function Main.f 1",
+                "    goto Main_0",
+                "label Main_0_loop",
+                "    push local 0",
+                "    push constant 1",
+                "    add",
+                "    pop local 0",
+                "label Main_0",
+                "    push local 0",
+                "    push constant 10",
+                "    lt",
+                "    if-goto Main_0_loop",
+                "    push constant 0",
+                "    return"),
+                optimize(
+                "function Main.f 1",
+                "label Main_0",
+                "    push local 0",
+                "    push constant 10",
+                "    lt",
+                "    not",
+                "    if-goto Main_1",
+                "    push local 0",
+                "    push constant 1",
+                "    add",
+                "    pop local 0",
+                "    goto Main_0",
+                "label Main_1",
+                "    push constant 0",
+                "    return"));
+    }
+
+    @Test
+    void leavesLoopsOnOtherValuesAlone() throws IOException {
+        // while (x) { let x = x - 1; }
+        String[] code = {
+                "function Main.f 1",
+                "label Main_0",
+                "    push local 0",
+                "    not",
+                "    if-goto Main_1",
+                "    push local 0",
+                "    push constant 1",
+                "    sub",
+                "    pop local 0",
+                "    goto Main_0",
+                "label Main_1",
+                "    push constant 0",
+                "    return" };
+
+        assertEquals(listing(code), optimize(code));
+    }
+
+    @Test
+    void shortensArrayStoresOfASingleValue() throws IOException {
+        // let a[i] = x;
+        assertEquals(listing(
+                "function Main.f 3",
+                "    push local 1",
+                "    push local 0",
+                "    add",
+                "    pop pointer 1",
+                "    push local 2",
+                "    pop that 0",
+                "    push constant 0",
+                "    return"),
+                optimize(
+                "function Main.f 3",
+                "    push local 1",
+                "    push local 0",
+                "    add",
+                "    push local 2",
+                "    pop temp 0",
+                "    pop pointer 1",
+                "    push temp 0",
+                "    pop that 0",
+                "    push constant 0",
+                "    return"));
+    }
+}
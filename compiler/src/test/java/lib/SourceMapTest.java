@@ -0,0 +1,93 @@
+package lib;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.jupiter.api.Test;
+
+class SourceMapTest {
+    private static final String IF_ELSE_THEN_WHILE = String.join("\n",
+            "class Main {",
+            "    function void main() {",
+            "        var int x;",
+            "        let x = 0;",
+            "        if (x < 1) {",
+            "            let x = 1;",
+            "        } else {",
+            "            let x = 2;",
+            "        }",
+            "        while (x < 10) {",
+            "            let x = x + 1;",
+            "        }",
+            "        return;",
+            "    }",
+            "}");
+
+    // compiles source as -O --source-map does and returns the .vm.map text
+    private static String optimizedMap(String source, StringWriter vmCode) throws IOException {
+        SourceMap sourceMap = new SourceMap();
+        VMWriter vmWriter = new VMWriter(vmCode);
+        vmWriter.setSourceMap(sourceMap);
+
+        CompilationEngine compilationEngine = new CompilationEngine(
+                SourceBuffer.of(source.toCharArray(), source.length()), new PeepholeOptimizer(vmWriter));
+        compilationEngine.setFoldConstants(true);
+        compilationEngine.compileClass();
+
+        StringWriter map = new StringWriter();
+        sourceMap.write(map);
+        return map.toString();
+    }
+
+    @Test
+    void rewrittenControlFlowKeepsTheLineOfItsStatement() throws IOException {
+        StringWriter vmCode = new StringWriter();
+        String map = optimizedMap(IF_ELSE_THEN_WHILE, vmCode);
+
+        assertEquals(String.join("\n",
+                "function Main.main 1",
+                "    push constant 0",
+                "    pop local 0",
+                "    push local 0",
+                "    push constant 1",
+                "    lt",
+                "    if-goto Main_1",
+                "    push constant 2",
+                "    pop local 0",
+                "    goto Main_2",
+                "label Main_1",
+                "    push constant 1",
+                "    pop local 0",
+                "    goto Main_2",
+                "label Main_2_loop",
+                "    push local 0",
+                "    push constant 1",
+                "    add",
+                "    pop local 0",
+                "label Main_2",
+                "    push local 0",
+                "    push constant 10",
+                "    lt",
+                "    if-goto Main_2_loop",
+                "    push constant 0",
+                "    return",
+                ""), vmCode.toString());
+
+        // VM lines 10-11 are the if's jump past its then part and the label of
+        // its then part; 14-15 and 20-24 are the rotated while
+        assertEquals(String.join("\n",
+                "1 2",
+                "2 4",
+                "4 5",
+                "8 8",
+                "10 5",
+                "12 6",
+                "14 10",
+                "16 11",
+                "20 10",
+                "25 13",
+                ""), map);
+    }
+}
@@ -0,0 +1,139 @@
+package lib;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the format written by BinaryVMWriter and replays the commands on
+ * another VMWriter, e.g. to turn a binary stream back into the text the
+ * compiler would have written in the first place.
+ */
+public class BinaryVMReader {
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final Command[] COMMANDS = Command.values();
+
+    // longer names are taken as a corrupt length rather than allocated
+    private static final int MAX_NAME_LENGTH = 1 << 16;
+
+    private final InputStream input;
+    private final List<String> names = new ArrayList<>();
+
+    public BinaryVMReader(InputStream input) {
+        this.input = input instanceof BufferedInputStream ? input : new BufferedInputStream(input);
+    }
+
+    public static void toText(InputStream input, Writer output) throws IOException {
+        VMWriter vmWriter = new VMWriter(output);
+        new BinaryVMReader(input).replay(vmWriter);
+        vmWriter.flush();
+    }
+
+    /**
+     * Replays the whole stream on vmWriter. A stream that is truncated or
+     * otherwise malformed is reported with an IOException.
+     */
+    void replay(VMWriter vmWriter) throws IOException {
+        for (byte b : BinaryVMWriter.MAGIC) {
+            if (readByte() != b) {
+                throw new StreamCorruptedException("Not a binary VM stream");
+            }
+        }
+        int version = readByte();
+        if (version != BinaryVMWriter.FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported binary VM format version " + version);
+        }
+
+        int opcode;
+        while ((opcode = input.read()) != -1) {
+            if (opcode < COMMANDS.length) {
+                vmWriter.writeArithmetic(COMMANDS[opcode]);
+            } else if (opcode == Opcode.PUSH) {
+                vmWriter.writePush(readSegment(), readVarint());
+            } else if (opcode == Opcode.POP) {
+                vmWriter.writePop(readSegment(), readVarint());
+            } else if (opcode == Opcode.LABEL) {
+                vmWriter.writeLabel(readName());
+            } else if (opcode == Opcode.GOTO) {
+                vmWriter.writeGoto(readName());
+            } else if (opcode == Opcode.IF_GOTO) {
+                vmWriter.writeIf(readName());
+            } else if (opcode == Opcode.CALL) {
+                vmWriter.writeCall(readName(), readVarint());
+            } else if (opcode == Opcode.FUNCTION) {
+                // same layout as the compiler's own text output
+                vmWriter.setIndentationSize(0);
+                vmWriter.writeFunction(readName(), readVarint());
+                vmWriter.setIndentationSize(4);
+            } else if (opcode == Opcode.RETURN) {
+                vmWriter.writeReturn();
+            } else {
+                throw new StreamCorruptedException("Invalid opcode " + opcode);
+            }
+        }
+
+        vmWriter.setIndentationSize(0);
+    }
+
+    private int readByte() throws IOException {
+        int b = input.read();
+        if (b == -1) {
+            throw new EOFException("Truncated binary VM stream");
+        }
+        return b;
+    }
+
+    private Segment readSegment() throws IOException {
+        int ordinal = readByte();
+        if (ordinal >= SEGMENTS.length) {
+            throw new StreamCorruptedException("Invalid segment " + ordinal);
+        }
+        return SEGMENTS[ordinal];
+    }
+
+    // the writer only writes non-negative values: indices, counts, ids and lengths
+    private int readVarint() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Malformed varint");
+    }
+
+    private String readName() throws IOException {
+        int id = readVarint();
+        if (id < names.size()) {
+            return names.get(id);
+        }
+        if (id != names.size()) {
+            throw new StreamCorruptedException("Invalid name id " + id);
+        }
+
+        int length = readVarint();
+        if (length > MAX_NAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid name length " + length);
+        }
+
+        byte[] bytes = input.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Truncated binary VM stream");
+        }
+
+        String name = new String(bytes, StandardCharsets.UTF_8);
+        names.add(name);
+        return name;
+    }
+}
@@ -0,0 +1,162 @@
+package lib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes VM commands in a compact binary form instead of text.
+ *
+ * The stream starts with the magic "JVMB" and a format version byte. Every
+ * command is one opcode byte, numbered as in Opcode. push/pop carry a segment
+ * byte (the Segment ordinal) and a varint index; call and function carry a
+ * name and a varint count; label, goto and if-goto carry a name. Varints are
+ * unsigned LEB128. A name is a varint id into a string table that is built as the
+ * stream goes: an id equal to the current table size introduces a new entry,
+ * spelled out right after it as a varint length and UTF-8 bytes.
+ */
+public class BinaryVMWriter extends VMWriter {
+    static final byte[] MAGIC = { 'J', 'V', 'M', 'B' };
+    static final int FORMAT_VERSION = 1;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length = 0;
+    private final Map<String, Integer> names = new HashMap<>();
+
+    public BinaryVMWriter(OutputStream output) throws IOException {
+        reset(output);
+    }
+
+    // Drops anything not yet flushed and starts a new stream on output.
+    void reset(OutputStream output) throws IOException {
+        this.output = output;
+        length = 0;
+        names.clear();
+
+        for (byte b : MAGIC) {
+            writeByte(b);
+        }
+        writeByte(FORMAT_VERSION);
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+        if (length + n > buffer.length) {
+            output.write(buffer, 0, length);
+            length = 0;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        ensureCapacity(1);
+        buffer[length++] = (byte) b;
+    }
+
+    private void writeVarint(int value) throws IOException {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0) {
+            buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[length++] = (byte) value;
+    }
+
+    private void writeName(String name) throws IOException {
+        Integer id = names.get(name);
+        if (id != null) {
+            writeVarint(id);
+            return;
+        }
+
+        writeVarint(names.size());
+        names.put(name, names.size());
+
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        if (bytes.length > buffer.length) {
+            output.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+    }
+
+    @Override
+    void setIndentationSize(int identationSize) {
+        // layout only matters for text
+    }
+
+    @Override
+    void writePush(Segment segment, int index) throws IOException {
+        writeByte(Opcode.PUSH);
+        writeByte(segment.ordinal());
+        writeVarint(index);
+    }
+
+    @Override
+    void writePop(Segment segment, int index) throws IOException {
+        writeByte(Opcode.POP);
+        writeByte(segment.ordinal());
+        writeVarint(index);
+    }
+
+    @Override
+    void writeArithmetic(Command command) throws IOException {
+        writeByte(command.ordinal());
+    }
+
+    @Override
+    void writeLabel(String label) throws IOException {
+        writeByte(Opcode.LABEL);
+        writeName(label);
+    }
+
+    @Override
+    void writeGoto(String label) throws IOException {
+        writeByte(Opcode.GOTO);
+        writeName(label);
+    }
+
+    @Override
+    void writeIf(String label) throws IOException {
+        writeByte(Opcode.IF_GOTO);
+        writeName(label);
+    }
+
+    @Override
+    void writeCall(String name, int nArgs) throws IOException {
+        writeByte(Opcode.CALL);
+        writeName(name);
+        writeVarint(nArgs);
+    }
+
+    @Override
+    void writeFunction(String name, int nVars) throws IOException {
+        writeByte(Opcode.FUNCTION);
+        writeName(name);
+        writeVarint(nVars);
+    }
+
+    @Override
+    void writeReturn() throws IOException {
+        writeByte(Opcode.RETURN);
+    }
+
+    @Override
+    void flush() throws IOException {
+        output.write(buffer, 0, length);
+        length = 0;
+        output.flush();
+    }
+
+    @Override
+    void close() throws IOException {
+        flush();
+        output.close();
+    }
+}
@@ -0,0 +1,219 @@
+package lib;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of compiled classes, kept in a .jackcache directory next to
+ * the sources. The index maps each source file name to the SHA-256 of its
+ * content and of the .vm that was emitted for it, and every emitted .vm is
+ * kept under its own hash so that a deleted or modified output can be put
+ * back without compiling. The whole cache is dropped when the compiler key
+ * (compiler version plus anything else that changes the output) differs.
+ *
+ * Lookups and stores may come from several worker threads at once; the index
+ * is only written back by save(). Several runs may also share a cache (a
+ * daemon serving parallel builds of the same tree), so files are written
+ * under unique names and moved into place, and save() leaves alone the files
+ * that appeared after the cache was opened.
+ */
+public class BuildCache {
+    public static final String DIRECTORY_NAME = ".jackcache";
+    private static final String INDEX_NAME = "index";
+    // allows for file systems that keep modification times to the second or coarser
+    private static final long SWEEP_MARGIN_MILLIS = 2000;
+
+    private static class CacheEntry {
+        final String sourceHash;
+        final String outputHash;
+
+        CacheEntry(String sourceHash, String outputHash) {
+            this.sourceHash = sourceHash;
+            this.outputHash = outputHash;
+        }
+    }
+
+    private final File directory;
+    private final String compilerKey;
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    private final Map<String, String> sourceHashes = new ConcurrentHashMap<>();
+    // files modified since then may belong to another run
+    private final long openedAt = System.currentTimeMillis();
+
+    public BuildCache(File sourceDirectory, String compilerKey, boolean rebuild) throws IOException {
+        this.directory = new File(sourceDirectory, DIRECTORY_NAME);
+        this.compilerKey = compilerKey;
+
+        if (!rebuild) {
+            load();
+        }
+    }
+
+    private void load() throws IOException {
+        File index = new File(directory, INDEX_NAME);
+        if (!index.isFile()) {
+            return;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(index))) {
+            String header = reader.readLine();
+            if (header == null || !header.equals("jackcache " + compilerKey)) {
+                // written by another compiler version or with other options
+                return;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 3);
+                if (fields.length == 3) {
+                    entries.put(fields[2], new CacheEntry(fields[0], fields[1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes output up to date from the cache if source hasn't changed since
+     * it was last compiled. Returns false if source has to be compiled.
+     */
+    public boolean restore(File source, File output) throws IOException {
+        // remembered for store(), in case the file changes while it is being compiled
+        String sourceHash = hash(source);
+        sourceHashes.put(source.getPath(), sourceHash);
+
+        CacheEntry entry = entries.get(source.getName());
+        if (entry == null || !entry.sourceHash.equals(sourceHash)) {
+            return false;
+        }
+
+        if (!output.isFile() || !entry.outputHash.equals(hash(output))) {
+            File cached = new File(directory, entry.outputHash + ".vm");
+            if (!cached.isFile()) {
+                return false;
+            }
+
+            File partial = partialFile(output);
+            Files.copy(cached.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(partial.toPath(), output.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        sourceHashes.remove(source.getPath());
+        return true;
+    }
+
+    public void store(File source, File output) throws IOException {
+        // hashed and copied from the same read, so a cached file always matches its name
+        byte[] content = Files.readAllBytes(output.toPath());
+        String outputHash = hash(content);
+        File cached = new File(directory, outputHash + ".vm");
+
+        if (!cached.isFile()) {
+            directory.mkdirs();
+            // copy under a unique name first so a concurrent reader never sees a partial file
+            File partial = File.createTempFile(outputHash, ".tmp", directory);
+            Files.write(partial.toPath(), content);
+            Files.move(partial.toPath(), cached.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        String sourceHash = sourceHashes.remove(source.getPath());
+        if (sourceHash == null) {
+            sourceHash = hash(source);
+        }
+        entries.put(source.getName(), new CacheEntry(sourceHash, outputHash));
+    }
+
+    public void forget(File source) {
+        entries.remove(source.getName());
+        sourceHashes.remove(source.getPath());
+    }
+
+    /**
+     * Writes the index back. When sources is given, entries for any other
+     * file are dropped, and cached outputs no entry refers to are deleted,
+     * unless they were written after this cache was opened.
+     */
+    public void save(Collection<File> sources) throws IOException {
+        if (sources != null) {
+            Set<String> names = new HashSet<>();
+            for (File source : sources) {
+                names.add(source.getName());
+            }
+            entries.keySet().retainAll(names);
+        }
+
+        directory.mkdirs();
+
+        Set<String> referenced = new HashSet<>();
+        File index = new File(directory, INDEX_NAME);
+        File partial = File.createTempFile(INDEX_NAME, ".tmp", directory);
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(partial))) {
+            writer.write("jackcache " + compilerKey);
+            writer.newLine();
+
+            for (Map.Entry<String, CacheEntry> entry : new TreeMap<>(entries).entrySet()) {
+                writer.write(entry.getValue().sourceHash + "\t" + entry.getValue().outputHash + "\t" + entry.getKey());
+                writer.newLine();
+                referenced.add(entry.getValue().outputHash + ".vm");
+            }
+        }
+        Files.move(partial.toPath(), index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().equals(INDEX_NAME) || referenced.contains(file.getName())) {
+                    continue;
+                }
+                // another run may be writing it, or have just stored it for its own index
+                if (file.lastModified() >= openedAt - SWEEP_MARGIN_MILLIS) {
+                    continue;
+                }
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns a name to write file under before moving it into place, so that
+     * another run on the same tree never sees it half written. The name is
+     * unique to the calling thread.
+     */
+    public static File partialFile(File file) {
+        return new File(file.getPath() + "." + ProcessHandle.current().pid() + "-" + Thread.currentThread().getId()
+                + ".tmp");
+    }
+
+    private static String hash(File file) throws IOException {
+        return hash(Files.readAllBytes(file.toPath()));
+    }
+
+    private static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
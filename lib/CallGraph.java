@@ -0,0 +1,88 @@
+package lib;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which VM functions call which, across every class of a program. The VM
+ * has no function pointers, so a function that no chain of calls leads to
+ * from the entry points can never run and can be left out of the output.
+ */
+public class CallGraph {
+    // function name -> names it calls
+    private final Map<String, Set<String>> callees = new HashMap<>();
+
+    // Adds the functions of one compiled class.
+    public void add(VMBuffer code) {
+        Set<String> calls = null;
+
+        for (int i = 0; i < code.size; i++) {
+            if (code.ops[i] == Opcode.FUNCTION) {
+                calls = new HashSet<>();
+                callees.put(code.names[i], calls);
+            } else if (code.ops[i] == Opcode.CALL && calls != null) {
+                calls.add(code.names[i]);
+            }
+        }
+    }
+
+    public boolean contains(String function) {
+        return callees.containsKey(function);
+    }
+
+    public int size() {
+        return callees.size();
+    }
+
+    /**
+     * Returns the functions that can be reached from the given roots. Roots
+     * that are not defined are skipped, and so are calls to functions that
+     * are not defined anywhere (the OS, for instance).
+     */
+    public Set<String> reachableFrom(String... roots) {
+        Set<String> reachable = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+
+        for (String root : roots) {
+            if (callees.containsKey(root) && reachable.add(root)) {
+                pending.push(root);
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            for (String callee : callees.get(pending.pop())) {
+                if (callees.containsKey(callee) && reachable.add(callee)) {
+                    pending.push(callee);
+                }
+            }
+        }
+
+        return reachable;
+    }
+
+    // Writes the functions of code that are in functions (all of them if it is
+    // null), skipping the others.
+    public static void write(VMBuffer code, VMWriter vmWriter, Set<String> functions) throws IOException {
+        int start = 0;
+
+        while (start < code.size) {
+            int end = start + 1;
+            while (end < code.size && code.ops[end] != Opcode.FUNCTION) {
+                end++;
+            }
+
+            if (code.ops[start] != Opcode.FUNCTION || functions == null || functions.contains(code.names[start])) {
+                code.replay(vmWriter, start, end);
+            }
+            start = end;
+        }
+
+        vmWriter.setIndentationSize(0);
+        vmWriter.flush();
+    }
+}
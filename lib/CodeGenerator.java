@@ -0,0 +1,288 @@
+package lib;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the VM code of parsed subroutines. The compilation engine only
+ * parses and resolves names; everything about the code that comes out,
+ * labels included, is decided here.
+ */
+class CodeGenerator {
+    private VMWriter vmWriter;
+    // number of the next label; starts at the subroutine's labelBase
+    private int runningIndex = 0;
+    private String className;
+    private boolean foldConstants = false;
+
+    CodeGenerator(VMWriter vmWriter) {
+        this.vmWriter = vmWriter;
+    }
+
+    void setWriter(VMWriter vmWriter) {
+        this.vmWriter = vmWriter;
+    }
+
+    void setFoldConstants(boolean foldConstants) {
+        this.foldConstants = foldConstants;
+    }
+
+    void flush() throws IOException {
+        vmWriter.flush();
+    }
+
+    void generate(Subroutine subroutine) throws IOException {
+        className = subroutine.className;
+        runningIndex = subroutine.labelBase;
+
+        vmWriter.setSourceLine(subroutine.line);
+        vmWriter.writeFunction(subroutine.name, subroutine.nLocals);
+        vmWriter.setIndentationSize(4);
+
+        if (subroutine.kind == KeyWord.METHOD) {
+            vmWriter.writePush(Segment.ARGUMENT, 0);
+            vmWriter.writePop(Segment.POINTER, 0);
+
+        } else if (subroutine.kind == KeyWord.CONSTRUCTOR) {
+            vmWriter.writePush(Segment.CONSTANT, subroutine.nFields);
+            vmWriter.writeCall("Memory.alloc", 1);
+            vmWriter.writePop(Segment.POINTER, 0);
+        }
+
+        writeStatements(subroutine.statements);
+
+        vmWriter.setIndentationSize(0);
+    }
+
+    // Writes statements parsed on their own rather than as a subroutine body,
+    // numbering their labels from labelBase.
+    void generate(String className, int labelBase, List<Statement> statements) throws IOException {
+        this.className = className;
+        runningIndex = labelBase;
+        writeStatements(statements);
+    }
+
+    // Writes the code that leaves the value of expression on the stack.
+    void generate(Expression expression) throws IOException {
+        writeExpression(expression);
+    }
+
+    // Each if and while takes two labels and each interned string one; the
+    // compilation engine counts them the same way to work out labelBase.
+    private String newLabel() {
+        return className + "_" + runningIndex++;
+    }
+
+    private void writeStatements(List<Statement> statements) throws IOException {
+        for (Statement statement : statements) {
+            vmWriter.setSourceLine(statement.line);
+            switch (statement.kind) {
+                case LET:
+                    writeLet(statement);
+                    break;
+                case IF:
+                    writeIf(statement);
+                    break;
+                case WHILE:
+                    writeWhile(statement);
+                    break;
+                case DO:
+                    writeExpression(statement.expression);
+                    // dump the top stack value
+                    vmWriter.writePop(Segment.TEMP, 0);
+                    break;
+                case RETURN:
+                    if (statement.expression != null) {
+                        writeExpression(statement.expression);
+                    } else {
+                        // add a dummy 0
+                        vmWriter.writePush(Segment.CONSTANT, 0);
+                    }
+                    vmWriter.writeReturn();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void writeLet(Statement statement) throws IOException {
+        if (statement.subscript == null) {
+            writeExpression(statement.expression);
+            vmWriter.writePop(statement.segment, statement.index);
+            return;
+        }
+
+        writeExpression(statement.subscript);
+
+        // add the array base address
+        vmWriter.writePush(statement.segment, statement.index);
+        vmWriter.writeArithmetic(Command.ADD);
+
+        writeExpression(statement.expression);
+
+        vmWriter.writePop(Segment.TEMP, 0);
+        vmWriter.writePop(Segment.POINTER, 1);
+        vmWriter.writePush(Segment.TEMP, 0);
+        vmWriter.writePop(Segment.THAT, 0);
+    }
+
+    private void writeIf(Statement statement) throws IOException {
+        String L1 = newLabel();
+        String L2 = newLabel();
+
+        writeExpression(statement.expression);
+        vmWriter.writeArithmetic(Command.NOT);
+        vmWriter.writeIf(L2);
+
+        writeStatements(statement.statements);
+
+        // the jumps around the branches belong to the if itself
+        vmWriter.setSourceLine(statement.line);
+        vmWriter.writeGoto(L1);
+        vmWriter.writeLabel(L2);
+
+        if (statement.elseStatements != null) {
+            writeStatements(statement.elseStatements);
+            vmWriter.setSourceLine(statement.line);
+        }
+
+        vmWriter.writeLabel(L1);
+    }
+
+    private void writeWhile(Statement statement) throws IOException {
+        String L1 = newLabel();
+        String L2 = newLabel();
+
+        vmWriter.writeLabel(L1);
+
+        writeExpression(statement.expression);
+        // if the expression is not true then exit (L2)
+        vmWriter.writeArithmetic(Command.NOT);
+        vmWriter.writeIf(L2);
+
+        writeStatements(statement.statements);
+
+        vmWriter.setSourceLine(statement.line);
+        vmWriter.writeGoto(L1);
+        vmWriter.writeLabel(L2);
+    }
+
+    private void writeExpression(Expression expression) throws IOException {
+        if (foldConstants) {
+            expression = expression.fold();
+        }
+        write(expression);
+    }
+
+    private void write(Expression expression) throws IOException {
+        switch (expression.kind) {
+            case CONSTANT:
+                writeConstant(expression.value);
+                break;
+            case VARIABLE:
+                vmWriter.writePush(expression.segment, expression.value);
+                break;
+            case ARRAY:
+                write(expression.left);
+                // add the array base address and make the target value on the top stack
+                vmWriter.writePush(expression.segment, expression.value);
+                vmWriter.writeArithmetic(Command.ADD);
+                vmWriter.writePop(Segment.POINTER, 1);
+                vmWriter.writePush(Segment.THAT, 0);
+                break;
+            case STRING:
+                writeString(expression.name);
+                break;
+            case INTERNED_STRING:
+                // the static is 0 until the initializer has run
+                String label = newLabel();
+                vmWriter.writePush(expression.segment, expression.value);
+                vmWriter.writeIf(label);
+                vmWriter.writeCall(expression.name, 0);
+                vmWriter.writePop(Segment.TEMP, 0);
+                vmWriter.writeLabel(label);
+                vmWriter.writePush(expression.segment, expression.value);
+                break;
+            case CALL:
+                if (expression.left != null) {
+                    write(expression.left);
+                }
+                for (Expression argument : expression.arguments) {
+                    write(argument);
+                }
+                vmWriter.writeCall(expression.name, expression.arguments.size() + (expression.left != null ? 1 : 0));
+                break;
+            case UNARY:
+                write(expression.left);
+                vmWriter.writeArithmetic(Command.fromUnaryOperator(expression.operator));
+                break;
+            case BINARY:
+                write(expression.left);
+                write(expression.right);
+
+                if (expression.operator == '*') {
+                    vmWriter.writeCall("Math.multiply", 2);
+                } else if (expression.operator == '/') {
+                    vmWriter.writeCall("Math.divide", 2);
+                } else {
+                    vmWriter.writeArithmetic(Command.fromBinaryOperator(expression.operator));
+                }
+                break;
+            case DOUBLE:
+                writeDouble(expression);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writeConstant(int value) throws IOException {
+        if (value >= 0) {
+            vmWriter.writePush(Segment.CONSTANT, value);
+        } else if (value == Short.MIN_VALUE) {
+            // 32768 can't be pushed, but its complement can
+            vmWriter.writePush(Segment.CONSTANT, Short.MAX_VALUE);
+            vmWriter.writeArithmetic(Command.NOT);
+        } else {
+            vmWriter.writePush(Segment.CONSTANT, -value);
+            vmWriter.writeArithmetic(Command.NEG);
+        }
+    }
+
+    private void writeString(String text) throws IOException {
+        // push the string len and call 'String.new' constructor, and then push the char
+        // code using 'append' method
+        vmWriter.writePush(Segment.CONSTANT, text.length());
+        vmWriter.writeCall("String.new", 1);
+
+        for (int i = 0; i < text.length(); i++) {
+            vmWriter.writePush(Segment.CONSTANT, text.charAt(i)); // char code
+            vmWriter.writeCall("String.appendChar", 2); // seems to return the address same as String.new
+        }
+    }
+
+    // The VM can't duplicate the top of the stack, so a value that is needed
+    // twice is kept in temp 1. Nothing else is evaluated while it is there.
+    private void writeDouble(Expression expression) throws IOException {
+        Expression operand = expression.left;
+        int times = expression.value;
+
+        if (operand.kind == Expression.Kind.VARIABLE) {
+            // a single push is as cheap to repeat as temp 1
+            write(operand);
+            write(operand);
+            vmWriter.writeArithmetic(Command.ADD);
+            times--;
+        } else {
+            write(operand);
+        }
+
+        for (; times > 0; times--) {
+            vmWriter.writePop(Segment.TEMP, 1);
+            vmWriter.writePush(Segment.TEMP, 1);
+            vmWriter.writePush(Segment.TEMP, 1);
+            vmWriter.writeArithmetic(Command.ADD);
+        }
+    }
+}
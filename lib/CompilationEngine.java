@@ -1,14 +1,82 @@
 package lib;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.Reader;
 import java.io.Writer;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class CompilationEngine {
+    // name of the generated function that builds a class's interned strings; ':'
+    // is legal in a VM name but can't appear in a Jack identifier, so it can't
+    // clash with a subroutine
+    private static final String STRING_POOL_FUNCTION = "strings:pool";
+
+    private static final EnumSet<KeyWord> CLASS_VAR_KINDS = EnumSet.of(KeyWord.STATIC, KeyWord.FIELD);
+    private static final EnumSet<KeyWord> SUBROUTINE_KINDS = EnumSet.of(KeyWord.CONSTRUCTOR, KeyWord.FUNCTION, KeyWord.METHOD);
+    private static final EnumSet<KeyWord> KEYWORD_CONSTANTS = EnumSet.of(KeyWord.TRUE, KeyWord.FALSE, KeyWord.NULL, KeyWord.THIS);
+    private static final EnumSet<KeyWord> PRIMITIVE_TYPES = EnumSet.of(KeyWord.INT, KeyWord.CHAR, KeyWord.BOOLEAN);
+
+    private static final SymbolSet BINARY_OPERATORS = new SymbolSet("+-*/&|<>=");
+    private static final SymbolSet UNARY_OPERATORS = new SymbolSet("-~");
+    private static final EnumSet<KeyWord> STATEMENT_KEYWORDS = EnumSet.of(KeyWord.LET, KeyWord.IF, KeyWord.WHILE, KeyWord.DO, KeyWord.RETURN);
+
+    // Unwinds the parser to the nearest place it can resume from, once the
+    // problem has been added to the diagnostics.
+    private static final class SyntaxError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SyntaxError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private interface Parser<T> {
+        T parse() throws IOException;
+    }
+
+    // Symbol characters as a 128 bit mask, so a token is tested without boxing
+    // or scanning. Every Jack symbol is ASCII.
+    private static final class SymbolSet {
+        private long low;
+        private long high;
+        // for error messages, e.g. "- or ~"
+        private final String names;
+
+        SymbolSet(String symbols) {
+            for (int i = 0; i < symbols.length(); i++) {
+                char symbol = symbols.charAt(i);
+                if (symbol < 64) {
+                    low |= 1L << symbol;
+                } else {
+                    high |= 1L << (symbol - 64);
+                }
+            }
+            names = String.join(" or ", symbols.split(""));
+        }
+
+        boolean contains(char symbol) {
+            if (symbol < 64) {
+                return (low & (1L << symbol)) != 0;
+            }
+            return symbol < 128 && (high & (1L << (symbol - 64))) != 0;
+        }
+    }
+
     private JackTokenizer tokenizer;
     private VMWriter vmWriter;
+    private CodeGenerator codeGenerator;
+
+    // set to generate code on other threads; the results are written in source order
+    private ExecutorService executor;
+    private final Deque<Future<VMBuffer>> pending = new ArrayDeque<>();
 
     public SymbolTable symTblClass;
     public SymbolTable symTblSubroutine;
@@ -16,14 +84,84 @@ public class CompilationEngine {
     private String currentClassName = "";
     private String currentSubroutineName = "";
     private KeyWord currentSubroutineType;
-    private int runningIndex = 0;
+    private int currentSubroutineLine;
+    // labels used by the subroutines parsed so far
+    private int labelCount = 0;
+    private boolean foldConstants = false;
+    private boolean internStrings = false;
+    private List<String> internedStrings = new ArrayList<>();
+
+    // problems found in the class so far; parsing goes on after each one
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+    private int lastErrorOffset = -1;
 
     public CompilationEngine(Reader input, Writer output) throws IOException {
+        this(SourceBuffer.read(input), output);
+    }
+
+    public CompilationEngine(SourceBuffer input, Writer output) throws IOException {
+        this(input, new VMWriter(output));
+    }
+
+    public CompilationEngine(SourceBuffer input, VMWriter output) throws IOException {
         tokenizer = new JackTokenizer(input);
         tokenizer.advance();
         symTblClass = new SymbolTable();
         symTblSubroutine = new SymbolTable();
-        vmWriter = new VMWriter(output);
+        vmWriter = output;
+        codeGenerator = new CodeGenerator(output);
+    }
+
+    /**
+     * Gets ready to compile another class from input to output, keeping the
+     * tokenizer's and symbol tables' storage. Options stay as they were set.
+     */
+    public void reset(SourceBuffer input, VMWriter output) throws IOException {
+        // left over if the previous class failed to compile
+        cancelPending();
+
+        tokenizer.reset(input);
+        tokenizer.advance();
+        symTblClass.reset();
+        symTblSubroutine.reset();
+        vmWriter = output;
+        codeGenerator.setWriter(output);
+        currentClassName = "";
+        currentSubroutineName = "";
+        currentSubroutineType = null;
+        labelCount = 0;
+        internedStrings.clear();
+        diagnostics.clear();
+        lastErrorOffset = -1;
+    }
+
+    /**
+     * Evaluates constant subexpressions at compile time and replaces
+     * multiplications by constants with cheaper code.
+     */
+    public void setFoldConstants(boolean foldConstants) {
+        this.foldConstants = foldConstants;
+        codeGenerator.setFoldConstants(foldConstants);
+    }
+
+    /**
+     * Generates the code of each subroutine on executor while the parser
+     * goes on with the next one. Subroutines are independent once parsed:
+     * names are already resolved and label numbers are assigned up front, so
+     * the output is the same as without an executor.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Builds each distinct string literal of a class once, into a static
+     * allocated after the class's own, instead of on every evaluation. The
+     * strings are shared, so code that modifies a literal sees the change
+     * the next time it is used.
+     */
+    public void setInternStrings(boolean internStrings) {
+        this.internStrings = internStrings;
     }
 
     private static class SymbolTableResult {
@@ -31,167 +169,404 @@ public class CompilationEngine {
         String type;
         int index;
 
-        SymbolTableResult(Segment segment, int index, String type) {
+        SymbolTableResult set(Segment segment, int index, String type) {
             this.segment = segment;
             this.index = index;
             this.type = type;
+            return this;
         }
     }
 
+    // handed out by every lookup, like SymbolTable.Symbol; valid until the next one
+    private final SymbolTableResult lookupResult = new SymbolTableResult();
+
     private SymbolTableResult lookupSymbolTables(String name) {
-        if (symTblSubroutine.kindOf(name) != Kind.NONE) {
-            int index = symTblSubroutine.indexOf(name);
+        SymbolTable.Symbol symbol = symTblSubroutine.lookup(name);
 
-            if (symTblSubroutine.kindOf(name) == Kind.VAR) {
-                return new SymbolTableResult(Segment.LOCAL, index, symTblSubroutine.typeOf(name));
-            } else {
-                return new SymbolTableResult(Segment.ARGUMENT, index, symTblSubroutine.typeOf(name));
-            }
+        if (symbol != null) {
+            Segment segment = symbol.kind == Kind.VAR ? Segment.LOCAL : Segment.ARGUMENT;
+            return lookupResult.set(segment, symbol.index, symbol.type);
+        }
 
-        } else if (symTblClass.kindOf(name) != Kind.NONE) {
-            int index = symTblClass.indexOf(name);
+        symbol = symTblClass.lookup(name);
 
-            if (symTblClass.kindOf(name) == Kind.FIELD) {
-                return new SymbolTableResult(Segment.THIS, index, symTblClass.typeOf(name));
-            } else {
-                return new SymbolTableResult(Segment.STATIC, index, symTblClass.typeOf(name));
-            }
+        if (symbol != null) {
+            Segment segment = symbol.kind == Kind.FIELD ? Segment.THIS : Segment.STATIC;
+            return lookupResult.set(segment, symbol.index, symbol.type);
         }
 
         // assume it's a class name if not found in the tables
         return null;
     }
 
-    private KeyWord processKeyword(KeyWord keyWords[]) throws IOException {
+    // name must be a variable; offset is where it is in the source
+    private SymbolTableResult resolveVariable(String name, int offset) {
+        SymbolTableResult result = lookupSymbolTables(name);
+
+        if (result == null) {
+            report(offset, "Undefined variable '" + name + "'");
+            // stands in so that parsing can go on; no code is generated after an error
+            return lookupResult.set(Segment.LOCAL, 0, null);
+        }
+
+        return result;
+    }
+
+    private void declare(SymbolTable symbolTable, String type, Kind kind) throws IOException {
+        int offset = tokenizer.currentToken.offset;
+        String name = processIdentifier();
+
+        if (symbolTable.lookup(name) != null) {
+            report(offset, "Identifier '" + name + "' already defined");
+        } else {
+            symbolTable.define(name, type, kind);
+        }
+    }
+
+    private void report(int offset, String message) {
+        // a second problem at the same place is most likely a consequence of the first
+        if (offset != lastErrorOffset) {
+            diagnostics.add(new Diagnostic(tokenizer.line(offset), tokenizer.column(offset), message));
+            lastErrorOffset = offset;
+        }
+    }
+
+    private SyntaxError syntaxError(String message) {
+        if (tokenizer.currentToken.pastEnd) {
+            // whatever was expected, the source stops short of it
+            message = "Unexpected end of input";
+        }
+        report(tokenizer.currentToken.offset, message);
+        return new SyntaxError();
+    }
+
+    // moves past the current token, which the caller has checked
+    private void advance() throws IOException {
+        if (tokenizer.currentToken.pastEnd) {
+            throw syntaxError("Unexpected end of input");
+        }
+        tokenizer.advance();
+    }
+
+    // Panic mode after an error in a statement that started at start: skips to
+    // just past its ';' or its block, or to a '}' or the next statement's keyword.
+    private void skipStatement(int start) throws IOException {
+        // blocks are skipped whole, so that their '}' isn't taken for the enclosing one
+        int depth = 0;
+
+        while (!tokenizer.currentToken.pastEnd) {
+            char symbol = tokenizer.symbol();
+
+            if (symbol == '{') {
+                depth++;
+            } else if (symbol == '}') {
+                if (depth == 0) {
+                    return;
+                }
+                if (--depth == 0) {
+                    tokenizer.advance();
+                    return;
+                }
+            } else if (depth == 0) {
+                if (symbol == ';') {
+                    tokenizer.advance();
+                    return;
+                }
+                if (tokenizer.currentToken.offset != start
+                        && (STATEMENT_KEYWORDS.contains(tokenizer.keyWord()) || isMemberStart())) {
+                    return;
+                }
+            }
+
+            tokenizer.advance();
+        }
+    }
+
+    // Panic mode after an error in a class variable or subroutine declaration
+    // that started at start: skips to the next declaration.
+    private void skipMember(int start) throws IOException {
+        while (!tokenizer.currentToken.pastEnd) {
+            if (tokenizer.currentToken.offset != start && isMemberStart()) {
+                return;
+            }
+            tokenizer.advance();
+        }
+    }
+
+    private boolean isMemberStart() {
+        return CLASS_VAR_KINDS.contains(tokenizer.keyWord()) || SUBROUTINE_KINDS.contains(tokenizer.keyWord());
+    }
+
+    private KeyWord processKeyword(EnumSet<KeyWord> keyWords) throws IOException {
         if (tokenizer.tokenType() != TokenType.KEYWORD) {
-            throw new Error("Keyword expected");
+            throw syntaxError("Keyword expected");
         }
 
-        if (!Arrays.asList(keyWords).contains(tokenizer.keyWord())) {
-            throw new Error("Invalid keyword");
+        if (!keyWords.contains(tokenizer.keyWord())) {
+            throw syntaxError("Invalid keyword");
         }
 
         KeyWord keyword = tokenizer.keyWord();
-        tokenizer.advance();
+        advance();
 
         return keyword;
     }
 
+    private void processKeyword(KeyWord keyWord) throws IOException {
+        if (tokenizer.tokenType() != TokenType.KEYWORD) {
+            throw syntaxError("Keyword expected");
+        }
+
+        if (tokenizer.keyWord() != keyWord) {
+            throw syntaxError("Invalid keyword");
+        }
+
+        advance();
+    }
+
     private String processIdentifier() throws IOException {
         if (tokenizer.tokenType() != TokenType.IDENTIFIER) {
-            throw new Error("Identifier expected");
+            throw syntaxError("Identifier expected");
         }
 
         String identifier = tokenizer.currentToken.toString();
-        tokenizer.advance();
+        advance();
 
         return identifier;
     }
 
-    private Integer processIntegerConstant(int intConst) throws IOException {
+    private int processIntegerConstant(int intConst) throws IOException {
         if (!(intConst >= 0 && intConst <= 32767)) {
-            throw new Error("Out of range");
+            // the parse isn't affected, so there is nothing to recover from
+            report(tokenizer.currentToken.offset, "Out of range");
         }
 
-        Integer intVal = tokenizer.intVal();
-        tokenizer.advance();
+        int intVal = tokenizer.intVal();
+        advance();
 
         return intVal;
     }
 
     private String processStringConstant(String strConst) throws IOException {
         String stringVal = tokenizer.stringVal();
-        tokenizer.advance();
+        advance();
 
         return stringVal;
     }
 
     private KeyWord processKeywordConstant(KeyWord keywordConst) throws IOException {
-        if (keywordConst != KeyWord.TRUE
-                && keywordConst != KeyWord.FALSE
-                && keywordConst != KeyWord.NULL
-                && keywordConst != KeyWord.THIS) {
-            throw new Error("Keyword constant expected");
+        if (!KEYWORD_CONSTANTS.contains(keywordConst)) {
+            throw syntaxError("Keyword constant expected");
         }
 
         KeyWord keyword = keywordConst;
-        tokenizer.advance();
+        advance();
 
         return keyword;
     }
 
     private String processType() throws IOException {
         if (tokenizer.tokenType() != TokenType.IDENTIFIER
-                && tokenizer.keyWord() != KeyWord.INT
-                && tokenizer.keyWord() != KeyWord.CHAR
-                && tokenizer.keyWord() != KeyWord.BOOLEAN) {
+                && !PRIMITIVE_TYPES.contains(tokenizer.keyWord())) {
 
-            throw new Error("Invalid type");
+            throw syntaxError("Invalid type");
         }
 
         String token = tokenizer.currentToken.toString();
-        tokenizer.advance();
+        advance();
 
         return token;
     }
 
-    private Character processSymbol(Character symbols[]) throws IOException {
-        if (!Arrays.asList(symbols).contains(tokenizer.symbol())) {
-            String[] symbolStrings = Arrays.stream(symbols).map(String::valueOf).toArray(String[]::new);
-            throw new Error(String.join(" or ", symbolStrings) + " expected" + ", got " + tokenizer.currentToken);
+    private char processSymbol(SymbolSet symbols) throws IOException {
+        if (!symbols.contains(tokenizer.symbol())) {
+            throw syntaxError(symbols.names + " expected" + ", got " + tokenizer.currentToken);
         }
 
-        Character symbol = tokenizer.symbol();
-        tokenizer.advance();
+        char symbol = tokenizer.symbol();
+        advance();
 
         return symbol;
     }
 
+    private void processSymbol(char symbol) throws IOException {
+        if (tokenizer.symbol() != symbol) {
+            throw syntaxError(symbol + " expected" + ", got " + tokenizer.currentToken);
+        }
+
+        advance();
+    }
+
+    /**
+     * Compiles a whole class. Parsing goes on after an error, so every
+     * problem in the class is reported at once, by a CompilationException.
+     */
     public void compileClass() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.CLASS });
+        try {
+            parseClass();
+        } catch (SyntaxError e) {
+            // in the class header or at its end; there is nothing left to parse
+        } catch (CompilationException e) {
+            // the tokenizer can't go on
+            diagnostics.addAll(e.getDiagnostics());
+        }
+        // stray characters, which the tokenizer skipped
+        diagnostics.addAll(tokenizer.diagnostics());
+
+        if (!diagnostics.isEmpty()) {
+            cancelPending();
+            throw new CompilationException(diagnostics);
+        }
+
+        if (!internedStrings.isEmpty()) {
+            compileStringPool();
+        }
+
+        while (!pending.isEmpty()) {
+            writePending();
+        }
+        codeGenerator.flush();
+    }
+
+    private void parseClass() throws IOException {
+        processKeyword(KeyWord.CLASS);
 
         currentClassName = processIdentifier();
         symTblClass.reset();
+        internedStrings.clear();
 
-        processSymbol(new Character[] { '{' });
+        processSymbol('{');
 
-        while (tokenizer.keyWord() == KeyWord.STATIC || tokenizer.keyWord() == KeyWord.FIELD) {
-            compileClassVarDec();
+        while (CLASS_VAR_KINDS.contains(tokenizer.keyWord()) && !tokenizer.currentToken.pastEnd) {
+            int start = tokenizer.currentToken.offset;
+            try {
+                compileClassVarDec();
+            } catch (SyntaxError e) {
+                skipMember(start);
+            }
         }
 
-        while (tokenizer.keyWord() == KeyWord.CONSTRUCTOR
-                || tokenizer.keyWord() == KeyWord.FUNCTION
-                || tokenizer.keyWord() == KeyWord.METHOD) {
-            compileSubroutineDec();
+        while (SUBROUTINE_KINDS.contains(tokenizer.keyWord()) && !tokenizer.currentToken.pastEnd) {
+            int start = tokenizer.currentToken.offset;
+            try {
+                compileSubroutineDec();
+            } catch (SyntaxError e) {
+                skipMember(start);
+            }
         }
 
-        processSymbol(new Character[] { '}' });
+        processSymbol('}');
     }
 
-    public void compileClassVarDec() throws IOException {
-        KeyWord kind = processKeyword(new KeyWord[] { KeyWord.STATIC, KeyWord.FIELD });
-        String type = processType();
-        String name = processIdentifier();
+    private void cancelPending() {
+        for (Future<VMBuffer> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+    }
 
-        symTblClass.define(name, type, Kind.valueOf(kind.toString().toUpperCase()));
+    private void generate(Subroutine subroutine) throws IOException {
+        if (!diagnostics.isEmpty()) {
+            // the output is thrown away anyway
+            return;
+        }
 
-        while (tokenizer.symbol() == Character.valueOf(',')) {
-            processSymbol(new Character[] { ',' });
-            name = processIdentifier();
+        if (executor == null) {
+            codeGenerator.generate(subroutine);
+            return;
+        }
+
+        boolean fold = foldConstants;
+        pending.add(executor.submit(() -> {
+            VMBuffer code = new VMBuffer();
+            CodeGenerator generator = new CodeGenerator(code);
+            generator.setFoldConstants(fold);
+            generator.generate(subroutine);
+            return code;
+        }));
+
+        // write out what is already done, so finished subroutines aren't held
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            writePending();
+        }
+    }
+
+    // waits for the oldest pending subroutine and writes it
+    private void writePending() throws IOException {
+        VMBuffer code;
+
+        try {
+            code = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new Error(cause);
+        }
+
+        code.replay(vmWriter);
+    }
+
+    // function that builds every interned string of the class into its static
+    private void compileStringPool() throws IOException {
+        List<Statement> statements = new ArrayList<>();
+
+        for (String text : internedStrings) {
+            statements.add(Statement.let(Segment.STATIC, symTblClass.indexOf(stringKey(text)), null,
+                    Expression.string(text)));
+        }
+        statements.add(Statement.ret(null));
+
+        // made up by the compiler, so it has no source line
+        generate(new Subroutine(currentClassName, currentClassName + "." + STRING_POOL_FUNCTION,
+                KeyWord.FUNCTION, 0, 0, statements, labelCount, 0));
+    }
+
+    // symbol table name of an interned string; quoted so it can't clash with an identifier
+    private static String stringKey(String text) {
+        return '"' + text + '"';
+    }
+
+    private Expression internString(String text) {
+        String key = stringKey(text);
+
+        // statics are all declared before the first subroutine, so the slots
+        // of the strings simply follow them
+        if (symTblClass.kindOf(key) == Kind.NONE) {
+            symTblClass.define(key, "String", Kind.STATIC);
+            internedStrings.add(text);
+        }
+
+        // its guard takes a label; folding never drops an interned string, so the count holds
+        labelCount++;
+        return Expression.internedString(symTblClass.indexOf(key), currentClassName + "." + STRING_POOL_FUNCTION);
+    }
+
+    public void compileClassVarDec() throws IOException {
+        Kind kind = processKeyword(CLASS_VAR_KINDS) == KeyWord.STATIC ? Kind.STATIC : Kind.FIELD;
+        String type = processType();
+        declare(symTblClass, type, kind);
 
-            symTblClass.define(name, type, Kind.valueOf(kind.toString().toUpperCase()));
+        while (tokenizer.symbol() == ',') {
+            processSymbol(',');
+            declare(symTblClass, type, kind);
         }
-        processSymbol(new Character[] { ';' });
+        processSymbol(';');
     }
 
     public void compileSubroutineDec() throws IOException {
         symTblSubroutine.reset();
 
-        currentSubroutineType = processKeyword(new KeyWord[] {
-                KeyWord.CONSTRUCTOR,
-                KeyWord.FUNCTION,
-                KeyWord.METHOD,
-        });
+        currentSubroutineLine = tokenizer.line(tokenizer.currentToken.offset);
+        currentSubroutineType = processKeyword(SUBROUTINE_KINDS);
 
         if (currentSubroutineType == KeyWord.METHOD) {
             symTblSubroutine.define("this", currentClassName, Kind.ARG);
@@ -199,195 +574,268 @@ public class CompilationEngine {
 
         // process "void" or type
         if (tokenizer.keyWord() == KeyWord.VOID) {
-            processKeyword(new KeyWord[] { KeyWord.VOID });
+            processKeyword(KeyWord.VOID);
         } else {
             processType();
         }
 
         currentSubroutineName = processIdentifier();
-        processSymbol(new Character[] { '(' });
+        processSymbol('(');
         compileParameterList();
-        processSymbol(new Character[] { ')' });
+        processSymbol(')');
         compileSubroutineBody();
     }
 
     public void compileParameterList() throws IOException {
-        if (tokenizer.symbol() != Character.valueOf(')')) {
+        if (tokenizer.symbol() != ')') {
             String type = processType();
-            String name = processIdentifier();
-
-            symTblSubroutine.define(name, type, Kind.ARG);
+            declare(symTblSubroutine, type, Kind.ARG);
 
-            if (tokenizer.symbol() == Character.valueOf(',')) {
-                processSymbol(new Character[] { ',' });
+            if (tokenizer.symbol() == ',') {
+                processSymbol(',');
                 compileParameterList();
             }
         }
     }
 
     public void compileSubroutineBody() throws IOException {
-        processSymbol(new Character[] { '{' });
+        processSymbol('{');
 
-        while (tokenizer.keyWord() == KeyWord.VAR) {
+        while (tokenizer.keyWord() == KeyWord.VAR && !tokenizer.currentToken.pastEnd) {
             compileVarDec();
         }
 
-        // must first evaluate the symbol table to get the number of vars
-        vmWriter.writeFunction(currentClassName + "." + currentSubroutineName, symTblSubroutine.varCount(Kind.VAR));
-        vmWriter.setIndentationSize(4);
+        int labelBase = labelCount;
+        List<Statement> statements = parseStatements();
+        processSymbol('}');
 
-        if (currentSubroutineType == KeyWord.METHOD) {
-            vmWriter.writePush(Segment.ARGUMENT, 0);
-            vmWriter.writePop(Segment.POINTER, 0);
+        // the body is written as soon as it is parsed, so only one subroutine is held at a time
+        generate(new Subroutine(currentClassName, currentClassName + "." + currentSubroutineName,
+                currentSubroutineType, symTblSubroutine.varCount(Kind.VAR), symTblClass.varCount(Kind.FIELD),
+                statements, labelBase, currentSubroutineLine));
+    }
+
+    public void compileVarDec() throws IOException {
+        processKeyword(KeyWord.VAR);
+        String type = processType();
+        declare(symTblSubroutine, type, Kind.VAR);
 
-        } else if (currentSubroutineType == KeyWord.CONSTRUCTOR) {
-            vmWriter.writePush(Segment.CONSTANT, symTblClass.varCount(Kind.FIELD));
-            vmWriter.writeCall("Memory.alloc", 1);
-            vmWriter.writePop(Segment.POINTER, 0);
+        while (tokenizer.symbol() == ',') {
+            processSymbol(',');
+            declare(symTblSubroutine, type, Kind.VAR);
         }
 
-        compileStatements();
-        processSymbol(new Character[] { '}' });
+        processSymbol(';');
+    }
+
+    // Parses a construct on its own, for the public compileX methods below, and
+    // throws a CompilationException if it has errors. Code of subroutines
+    // parsed before is written first, so the output stays in source order.
+    private <T> T parseAlone(Parser<T> parser) throws IOException {
+        T result = null;
+        try {
+            result = parser.parse();
+        } catch (SyntaxError e) {
+            // reported already
+        }
 
-        vmWriter.setIndentationSize(0);
+        if (!diagnostics.isEmpty() || !tokenizer.diagnostics().isEmpty()) {
+            List<Diagnostic> all = new ArrayList<>(diagnostics);
+            all.addAll(tokenizer.diagnostics());
+            throw new CompilationException(all);
+        }
+
+        while (!pending.isEmpty()) {
+            writePending();
+        }
+        return result;
     }
 
-    public void compileVarDec() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.VAR });
-        String type = processType();
-        String name = processIdentifier();
+    private Statement parseStatement(Parser<Statement> parser) throws IOException {
+        int line = tokenizer.line(tokenizer.currentToken.offset);
+        Statement statement = parser.parse();
+        statement.line = line;
+        return statement;
+    }
 
-        symTblSubroutine.define(name, type, Kind.VAR);
+    private void compileStatement(Parser<Statement> parser) throws IOException {
+        int labelBase = labelCount;
+        Statement statement = parseAlone(() -> parseStatement(parser));
+        writeStatements(labelBase, List.of(statement));
+    }
 
-        while (tokenizer.symbol() == Character.valueOf(',')) {
-            processSymbol(new Character[] { ',' });
+    private void writeStatements(int labelBase, List<Statement> statements) throws IOException {
+        codeGenerator.generate(currentClassName, labelBase, statements);
+        codeGenerator.flush();
+    }
 
-            name = processIdentifier();
-            symTblSubroutine.define(name, type, Kind.VAR);
+    private void writeExpressions(List<Expression> expressions) throws IOException {
+        for (Expression expression : expressions) {
+            codeGenerator.generate(expression);
         }
-
-        processSymbol(new Character[] { ';' });
+        codeGenerator.flush();
     }
 
+    // The methods below parse a single construct and write its code straight
+    // away. compileClass doesn't use them: it parses each subroutine body whole
+    // before its code is written.
+
     public void compileStatements() throws IOException {
-        while (true) {
-            if (tokenizer.keyWord() == KeyWord.LET) {
-                compileLet();
-            } else if (tokenizer.keyWord() == KeyWord.IF) {
-                compileIf();
-            } else if (tokenizer.keyWord() == KeyWord.WHILE) {
-                compileWhile();
-            } else if (tokenizer.keyWord() == KeyWord.DO) {
-                compileDo();
-            } else if (tokenizer.keyWord() == KeyWord.RETURN) {
-                compileReturn();
-            } else {
-                break;
-            }
-        }
+        int labelBase = labelCount;
+        writeStatements(labelBase, parseAlone(this::parseStatements));
     }
 
     public void compileLet() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.LET });
-        String name = processIdentifier();
+        compileStatement(this::parseLet);
+    }
 
-        SymbolTableResult symbolTableResult = lookupSymbolTables(name);
-        boolean isArray = false;
+    public void compileIf() throws IOException {
+        compileStatement(this::parseIf);
+    }
 
-        if (tokenizer.symbol() == Character.valueOf('[')) {
-            processSymbol(new Character[] { '[' });
-            compileExpression();
+    public void compileWhile() throws IOException {
+        compileStatement(this::parseWhile);
+    }
 
-            // add the array base address
-            vmWriter.writePush(symbolTableResult.segment, symbolTableResult.index);
-            vmWriter.writeArithmetic(Command.ADD);
+    public void compileDo() throws IOException {
+        compileStatement(this::parseDo);
+    }
 
-            isArray = true;
+    public void compileReturn() throws IOException {
+        compileStatement(this::parseReturn);
+    }
 
-            processSymbol(new Character[] { ']' });
-        }
-        processSymbol(new Character[] { '=' });
-        compileExpression();
+    // leaves the call's result on the stack
+    public void compileSubroutineCall() throws IOException {
+        writeExpressions(List.of(parseAlone(this::parseSubroutineCall)));
+    }
 
-        if (isArray) {
-            vmWriter.writePop(Segment.TEMP, 0);
-            vmWriter.writePop(Segment.POINTER, 1);
-            vmWriter.writePush(Segment.TEMP, 0);
-            vmWriter.writePop(Segment.THAT, 0);
-        } else {
-            vmWriter.writePop(symbolTableResult.segment, symbolTableResult.index);
-        }
+    public void compileExpression() throws IOException {
+        writeExpressions(List.of(parseAlone(this::parseExpression)));
+    }
 
-        processSymbol(new Character[] { ';' });
+    public void compileTerm() throws IOException {
+        writeExpressions(List.of(parseAlone(this::parseTerm)));
     }
 
-    public void compileIf() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.IF });
-        processSymbol(new Character[] { '(' });
+    // returns the number of expressions, whose values are left on the stack
+    public int compileExpressionList() throws IOException {
+        List<Expression> expressions = parseAlone(this::parseExpressionList);
+        writeExpressions(expressions);
+        return expressions.size();
+    }
 
-        String L1 = currentClassName + "_" + runningIndex++;
-        String L2 = currentClassName + "_" + runningIndex++;
+    private List<Statement> parseStatements() throws IOException {
+        List<Statement> statements = new ArrayList<>();
+
+        while (tokenizer.tokenType() == TokenType.KEYWORD && !tokenizer.currentToken.pastEnd) {
+            int start = tokenizer.currentToken.offset;
+            int line = tokenizer.line(tokenizer.currentToken.offset);
+            Statement statement;
+
+            try {
+                switch (tokenizer.keyWord()) {
+                    case LET:
+                        statement = parseLet();
+                        break;
+                    case IF:
+                        statement = parseIf();
+                        break;
+                    case WHILE:
+                        statement = parseWhile();
+                        break;
+                    case DO:
+                        statement = parseDo();
+                        break;
+                    case RETURN:
+                        statement = parseReturn();
+                        break;
+                    default:
+                        return statements;
+                }
+                statement.line = line;
+                statements.add(statement);
+            } catch (SyntaxError e) {
+                skipStatement(start);
+            }
+        }
 
-        compileExpression();
-        vmWriter.writeArithmetic(Command.NOT);
-        vmWriter.writeIf(L2);
+        return statements;
+    }
 
-        processSymbol(new Character[] { ')' });
-        processSymbol(new Character[] { '{' });
-        compileStatements();
-        processSymbol(new Character[] { '}' });
+    private Statement parseLet() throws IOException {
+        processKeyword(KeyWord.LET);
+        int offset = tokenizer.currentToken.offset;
+        String name = processIdentifier();
 
-        vmWriter.writeGoto(L1);
-        vmWriter.writeLabel(L2);
+        // read before the expressions below look up variables of their own
+        SymbolTableResult symbolTableResult = resolveVariable(name, offset);
+        Segment segment = symbolTableResult.segment;
+        int index = symbolTableResult.index;
+        Expression subscript = null;
 
-        if (tokenizer.keyWord() == KeyWord.ELSE) {
-            processKeyword(new KeyWord[] { KeyWord.ELSE });
-            processSymbol(new Character[] { '{' });
-            compileStatements();
-            processSymbol(new Character[] { '}' });
+        if (tokenizer.symbol() == '[') {
+            processSymbol('[');
+            subscript = parseExpression();
+            processSymbol(']');
         }
+        processSymbol('=');
+        Expression value = parseExpression();
 
-        vmWriter.writeLabel(L1);
+        processSymbol(';');
+
+        return Statement.let(segment, index, subscript, value);
     }
 
-    public void compileWhile() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.WHILE });
-        processSymbol(new Character[] { '(' });
+    private Statement parseIf() throws IOException {
+        processKeyword(KeyWord.IF);
+        labelCount += 2;
+        processSymbol('(');
+        Expression condition = parseExpression();
+        processSymbol(')');
 
-        String L1 = currentClassName + "_" + runningIndex++;
-        String L2 = currentClassName + "_" + runningIndex++;
+        processSymbol('{');
+        List<Statement> statements = parseStatements();
+        processSymbol('}');
 
-        vmWriter.writeLabel(L1);
+        List<Statement> elseStatements = null;
+        if (tokenizer.keyWord() == KeyWord.ELSE) {
+            processKeyword(KeyWord.ELSE);
+            processSymbol('{');
+            elseStatements = parseStatements();
+            processSymbol('}');
+        }
 
-        compileExpression();
-        // if the expression is not true then exit (L2)
-        vmWriter.writeArithmetic(Command.NOT);
-        vmWriter.writeIf(L2);
+        return Statement.ifElse(condition, statements, elseStatements);
+    }
 
-        processSymbol(new Character[] { ')' });
-        processSymbol(new Character[] { '{' });
-        compileStatements();
+    private Statement parseWhile() throws IOException {
+        processKeyword(KeyWord.WHILE);
+        labelCount += 2;
+        processSymbol('(');
+        Expression condition = parseExpression();
+        processSymbol(')');
 
-        vmWriter.writeGoto(L1);
-        processSymbol(new Character[] { '}' });
+        processSymbol('{');
+        List<Statement> statements = parseStatements();
+        processSymbol('}');
 
-        vmWriter.writeLabel(L2);
+        return Statement.loop(condition, statements);
     }
 
-    public void compileDo() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.DO });
-        compileSubroutineCall();
-        // dump the top stack value
-        vmWriter.writePop(Segment.TEMP, 0);
-        processSymbol(new Character[] { ';' });
+    private Statement parseDo() throws IOException {
+        processKeyword(KeyWord.DO);
+        Expression call = parseSubroutineCall();
+        processSymbol(';');
+
+        return Statement.call(call);
     }
 
-    // no wrapping tag
-    public void compileSubroutineCall() throws IOException {
+    private Expression parseSubroutineCall() throws IOException {
         String name = "";
-        int thisArg = 0;
+        Expression receiver = null;
 
-        if (tokenizer.peekNextToken(1).equals(".")) {
+        if (tokenizer.peekSymbol(1) == '.') {
             name = processIdentifier();
 
             SymbolTableResult symbolTableResult = lookupSymbolTables(name);
@@ -395,11 +843,10 @@ public class CompilationEngine {
             // instance var name changes to class name, push the corresponding 'this'
             if (symbolTableResult != null) {
                 name = symbolTableResult.type;
-                vmWriter.writePush(symbolTableResult.segment, symbolTableResult.index);
-                thisArg = 1;
+                receiver = Expression.variable(symbolTableResult.segment, symbolTableResult.index);
             }
 
-            processSymbol(new Character[] { '.' });
+            processSymbol('.');
             name += "." + processIdentifier();
         } else {
             // for constructor and method subroutine, function call without '.' must be
@@ -407,138 +854,109 @@ public class CompilationEngine {
             // ClassA.methodA)
             if (currentSubroutineType == KeyWord.CONSTRUCTOR || currentSubroutineType == KeyWord.METHOD) {
                 name = currentClassName + ".";
-                vmWriter.writePush(Segment.POINTER, 0);
-                thisArg = 1;
+                receiver = Expression.variable(Segment.POINTER, 0);
             }
             name += processIdentifier();
         }
 
-        processSymbol(new Character[] { '(' });
-        int nArgs = compileExpressionList();
-        processSymbol(new Character[] { ')' });
+        processSymbol('(');
+        List<Expression> arguments = parseExpressionList();
+        processSymbol(')');
 
-        vmWriter.writeCall(name, nArgs + thisArg);
+        return Expression.call(name, receiver, arguments);
     }
 
-    public void compileReturn() throws IOException {
-        processKeyword(new KeyWord[] { KeyWord.RETURN });
+    private Statement parseReturn() throws IOException {
+        processKeyword(KeyWord.RETURN);
 
-        if (tokenizer.symbol() != Character.valueOf(';')) {
-            compileExpression();
-            vmWriter.writeReturn();
-        } else {
-            // add a dummy 0
-            vmWriter.writePush(Segment.CONSTANT, 0);
-            vmWriter.writeReturn();
+        Expression value = null;
+        if (tokenizer.symbol() != ';') {
+            value = parseExpression();
         }
 
-        processSymbol(new Character[] { ';' });
-    }
-
-    public void compileExpression() throws IOException {
-        compileTerm();
+        processSymbol(';');
 
-        List<Character> binOpList = Arrays.asList('+', '-', '*', '/', '&', '|', '<', '>', '=');
+        return Statement.ret(value);
+    }
 
-        while (binOpList.contains(tokenizer.symbol())) {
-            Character binOp = processSymbol(binOpList.toArray(new Character[0]));
-            compileTerm();
+    private Expression parseExpression() throws IOException {
+        Expression expression = parseTerm();
 
-            if (binOp.equals('*')) {
-                vmWriter.writeCall("Math.multiply", 2);
-            } else if (binOp.equals('/')) {
-                vmWriter.writeCall("Math.divide", 2);
-            } else {
-                vmWriter.writeArithmetic(Command.fromBinaryOperator(binOp));
-            }
+        while (BINARY_OPERATORS.contains(tokenizer.symbol())) {
+            char binOp = processSymbol(BINARY_OPERATORS);
+            expression = Expression.binary(binOp, expression, parseTerm());
         }
+
+        return expression;
     }
 
-    public void compileTerm() throws IOException {
-        String nextToken = tokenizer.peekNextToken(1);
+    private Expression parseTerm() throws IOException {
+        char nextSymbol = tokenizer.peekSymbol(1);
 
-        if (nextToken.equals("[")) {
+        if (nextSymbol == '[') {
             // -> varName'['expression']'
+            int offset = tokenizer.currentToken.offset;
             String name = processIdentifier();
-            processSymbol(new Character[] { '[' });
-            compileExpression();
+            processSymbol('[');
+            Expression subscript = parseExpression();
 
             // add the array base address and make the target value on the top stack
-            SymbolTableResult symbolTableResult = lookupSymbolTables(name);
-            vmWriter.writePush(symbolTableResult.segment, symbolTableResult.index);
-            vmWriter.writeArithmetic(Command.ADD);
-            vmWriter.writePop(Segment.POINTER, 1);
-            vmWriter.writePush(Segment.THAT, 0);
+            SymbolTableResult symbolTableResult = resolveVariable(name, offset);
+
+            processSymbol(']');
 
-            processSymbol(new Character[] { ']' });
-        } else if (tokenizer.symbol() == Character.valueOf('(')) {
+            return Expression.array(symbolTableResult.segment, symbolTableResult.index, subscript);
+        } else if (tokenizer.symbol() == '(') {
             // -> '('expression')'
-            processSymbol(new Character[] { '(' });
-            compileExpression();
-            processSymbol(new Character[] { ')' });
-        } else if (tokenizer.symbol() == Character.valueOf('-') || tokenizer.symbol() == Character.valueOf('~')) {
+            processSymbol('(');
+            Expression expression = parseExpression();
+            processSymbol(')');
+
+            return expression;
+        } else if (UNARY_OPERATORS.contains(tokenizer.symbol())) {
             // -> unaryOp term
-            Character unaryOp = processSymbol(new Character[] { '-', '~' });
-            compileTerm();
+            char unaryOp = processSymbol(UNARY_OPERATORS);
 
-            vmWriter.writeArithmetic(Command.fromUnaryOperator(unaryOp));
-        } else if (nextToken.equals("(") || nextToken.equals(".")) {
-            compileSubroutineCall();
+            return Expression.unary(unaryOp, parseTerm());
+        } else if (nextSymbol == '(' || nextSymbol == '.') {
+            return parseSubroutineCall();
         } else if (tokenizer.tokenType() == TokenType.INT_CONST) {
-            int intVal = processIntegerConstant(tokenizer.intVal());
-
-            vmWriter.writePush(Segment.CONSTANT, intVal);
+            return Expression.constant(processIntegerConstant(tokenizer.intVal()));
         } else if (tokenizer.tokenType() == TokenType.STRING_CONST) {
             String stringVal = processStringConstant(tokenizer.stringVal());
-            // push the string len and call 'String.new' constructor, and then push the char
-            // code using 'append' method
-            vmWriter.writePush(Segment.CONSTANT, stringVal.length());
-            vmWriter.writeCall("String.new", 1);
-
-            for (char ch : stringVal.toCharArray()) {
-                vmWriter.writePush(Segment.CONSTANT, ch); // char code
-                vmWriter.writeCall("String.appendChar", 2); // seems to return the address same as String.new
-            }
 
+            return internStrings ? internString(stringVal) : Expression.string(stringVal);
         } else if (tokenizer.tokenType() == TokenType.KEYWORD) {
             KeyWord keyword = processKeywordConstant(tokenizer.keyWord());
 
             switch (keyword) {
                 case THIS:
-                    vmWriter.writePush(Segment.POINTER, 0);
-                    break;
+                    return Expression.variable(Segment.POINTER, 0);
                 case TRUE: // -1
-                    vmWriter.writePush(Segment.CONSTANT, 1);
-                    vmWriter.writeArithmetic(Command.NEG);
-                    break;
-                case FALSE: // 0
-                case NULL:
-                    vmWriter.writePush(Segment.CONSTANT, 0);
-                    break;
-                default:
-                    break;
+                    return Expression.constant(-1);
+                default: // false and null are 0
+                    return Expression.constant(0);
             }
         } else {
+            int offset = tokenizer.currentToken.offset;
             String name = processIdentifier();
-            SymbolTableResult symbolTableResult = lookupSymbolTables(name);
+            SymbolTableResult symbolTableResult = resolveVariable(name, offset);
 
-            vmWriter.writePush(symbolTableResult.segment, symbolTableResult.index);
+            return Expression.variable(symbolTableResult.segment, symbolTableResult.index);
         }
     }
 
-    public int compileExpressionList() throws IOException {
-        int n = 0;
-
-        if (tokenizer.symbol() != Character.valueOf(')')) {
-            compileExpression();
-            n += 1;
-            while (tokenizer.symbol() == Character.valueOf(',')) {
-                processSymbol(new Character[] { ',' });
-                compileExpression();
-                n += 1;
+    private List<Expression> parseExpressionList() throws IOException {
+        List<Expression> expressions = new ArrayList<>();
+
+        if (tokenizer.symbol() != ')') {
+            expressions.add(parseExpression());
+            while (tokenizer.symbol() == ',') {
+                processSymbol(',');
+                expressions.add(parseExpression());
             }
         }
 
-        return n;
+        return expressions;
     }
 }
@@ -0,0 +1,39 @@
+package lib;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Thrown when a class doesn't compile. It carries every problem that was
+ * found, in source order, not just the first one.
+ */
+public class CompilationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final List<Diagnostic> diagnostics;
+
+    public CompilationException(List<Diagnostic> diagnostics) {
+        List<Diagnostic> sorted = new ArrayList<>(diagnostics);
+        sorted.sort(Comparator.comparingInt((Diagnostic diagnostic) -> diagnostic.line)
+                .thenComparingInt(diagnostic -> diagnostic.column));
+        this.diagnostics = List.copyOf(sorted);
+    }
+
+    public List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    // one diagnostic per line
+    @Override
+    public String getMessage() {
+        StringBuilder message = new StringBuilder();
+        for (Diagnostic diagnostic : diagnostics) {
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            message.append(diagnostic);
+        }
+        return message.toString();
+    }
+}
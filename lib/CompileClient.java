@@ -0,0 +1,71 @@
+package lib;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Client side of CompileServer's protocol: hands a command line to the
+ * daemon and prints what it answers, as if the compile had run here.
+ */
+public final class CompileClient {
+    private CompileClient() {
+    }
+
+    // Throws IOException if no daemon is listening on socket.
+    public static SocketChannel connect(Path socket) throws IOException {
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    // Returns the exit status of the compile. If timings isn't null, the time
+    // the daemon took is printed there.
+    public static int run(SocketChannel channel, String[] args, PrintStream out, PrintStream err,
+            PrintStream timings) throws IOException {
+        Writer output = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+        output.write("dir " + Path.of("").toAbsolutePath() + "\n");
+        for (String arg : args) {
+            if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0) {
+                throw new IllegalArgumentException("Arguments can't contain line breaks");
+            }
+            output.write("arg " + arg + "\n");
+        }
+        output.write("\n");
+        output.flush();
+
+        BufferedReader input = new BufferedReader(
+                new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+        String line;
+
+        while ((line = input.readLine()) != null) {
+            if (line.startsWith("out ")) {
+                out.println(line.substring(4));
+            } else if (line.startsWith("err ")) {
+                err.println(line.substring(4));
+            } else if (line.startsWith("exit ")) {
+                String[] fields = line.split(" ");
+                if (timings != null && fields.length > 2) {
+                    timings.println("Compiled by the daemon in " + fields[2] + " ms");
+                }
+                return Integer.parseInt(fields[1]);
+            }
+        }
+
+        throw new IOException("The daemon closed the connection");
+    }
+}
@@ -0,0 +1,181 @@
+package lib;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiles on behalf of clients that connect to a Unix domain socket, so a
+ * build that runs the compiler hundreds of times pays for starting the JVM
+ * and warming up the JIT once. Each connection is served on its own thread,
+ * so parallel build jobs don't wait for each other.
+ *
+ * The protocol is UTF-8 text, one item per line. The client sends
+ * "dir <working directory>", then "arg <argument>" for each command line
+ * argument, then an empty line. The server answers with "out <line>" and
+ * "err <line>" for what the compiler prints to stdout and stderr, and ends
+ * with "exit <status> <milliseconds>".
+ */
+public class CompileServer {
+    public interface Handler {
+        // Compiles as the command line compiler would with args and returns its exit status.
+        int compile(String[] args, File workingDirectory, PrintStream out, PrintStream err) throws Exception;
+    }
+
+    private final Path socket;
+    private final Handler handler;
+    private ServerSocketChannel server;
+
+    public CompileServer(Path socket, Handler handler) {
+        this.socket = socket;
+        this.handler = handler;
+    }
+
+    // Starts listening on the socket, taking it over from a daemon that was
+    // killed. Throws BindException if a daemon is still listening there.
+    public void bind() throws IOException {
+        if (listening()) {
+            throw new BindException("A daemon is already listening on " + socket);
+        }
+        // nobody there; the file may have been left by a daemon that didn't get to remove it
+        Files.deleteIfExists(socket);
+
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        // the daemon is usually stopped by being killed
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> socket.toFile().delete()));
+    }
+
+    private boolean listening() {
+        try {
+            CompileClient.connect(socket).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Accepts connections until the process is killed.
+    public void serve() throws IOException {
+        ExecutorService workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try (ServerSocketChannel server = this.server) {
+            while (true) {
+                SocketChannel client = server.accept();
+                workers.execute(() -> serve(client));
+            }
+        } finally {
+            workers.shutdownNow();
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    private void serve(SocketChannel client) {
+        try (client) {
+            BufferedReader input = new BufferedReader(
+                    new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+            Writer output = new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8);
+
+            File workingDirectory = null;
+            List<String> args = new ArrayList<>();
+            String line;
+
+            while ((line = input.readLine()) != null && !line.isEmpty()) {
+                if (line.startsWith("dir ")) {
+                    workingDirectory = new File(line.substring(4));
+                } else if (line.startsWith("arg ")) {
+                    args.add(line.substring(4));
+                }
+            }
+            if (line == null) {
+                // the client went away before finishing its request
+                return;
+            }
+
+            PrintStream out = new PrintStream(new LineStream("out ", output), true, StandardCharsets.UTF_8);
+            PrintStream err = new PrintStream(new LineStream("err ", output), true, StandardCharsets.UTF_8);
+            long start = System.nanoTime();
+            int status;
+
+            try {
+                status = handler.compile(args.toArray(new String[0]), workingDirectory, out, err);
+            } catch (Exception e) {
+                err.println(e.getMessage() != null ? e.getMessage() : e.toString());
+                status = 1;
+            }
+
+            out.close();
+            err.close();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            synchronized (output) {
+                output.write("exit " + status + " " + millis + "\n");
+                output.flush();
+            }
+        } catch (IOException e) {
+            // the client went away; nothing to tell it
+        }
+    }
+
+    // Sends what is printed to it as lines starting with prefix. Shared with
+    // the other stream of the same client, so whole lines are written at once.
+    private static class LineStream extends OutputStream {
+        private final String prefix;
+        private final Writer output;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LineStream(String prefix, Writer output) {
+            this.prefix = prefix;
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b == '\n') {
+                sendLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        private void sendLine() throws IOException {
+            synchronized (output) {
+                output.write(prefix + line.toString(StandardCharsets.UTF_8) + "\n");
+                output.flush();
+            }
+            line.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // an unfinished last line
+            if (line.size() > 0) {
+                sendLine();
+            }
+        }
+    }
+}
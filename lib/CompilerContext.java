@@ -0,0 +1,116 @@
+package lib;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Everything needed to compile one class, kept from one file to the next so
+ * that a long batch or a long-running compiler doesn't allocate a new
+ * engine, tokenizer, symbol tables and buffers for every file. Each call
+ * hands out the same objects again, reset for the new file, so a context
+ * can only compile one class at a time.
+ *
+ * Contexts are taken with acquire() and handed back with release(), from a
+ * pool shared by every thread, so that threads that only live for one
+ * request (a daemon's connections, a batch's worker pool) still reuse them.
+ */
+public final class CompilerContext {
+    private static final int INITIAL_SOURCE_SIZE = 8192;
+
+    // contexts no thread is using
+    private static final Queue<CompilerContext> idle = new ConcurrentLinkedQueue<>();
+
+    private char[] chars = new char[INITIAL_SOURCE_SIZE];
+    private final VMWriter textWriter = new VMWriter(Writer.nullWriter());
+    private BinaryVMWriter binaryWriter;
+    private final PeepholeOptimizer optimizer = new PeepholeOptimizer(textWriter);
+    private CompilationEngine compilationEngine;
+
+    // Returns an idle context, or a new one if every context is in use.
+    public static CompilerContext acquire() {
+        CompilerContext context = idle.poll();
+        return context != null ? context : new CompilerContext();
+    }
+
+    // Hands the context back for another compile; it mustn't be used after this.
+    public void release() {
+        idle.add(this);
+    }
+
+    // Reads a source file into the context's char buffer, which is valid
+    // until the next read.
+    public SourceBuffer read(File jackFile) throws IOException {
+        int n = 0;
+
+        try (Reader input = new FileReader(jackFile)) {
+            int read;
+            while ((read = input.read(chars, n, chars.length - n)) != -1) {
+                n += read;
+                if (n == chars.length) {
+                    chars = Arrays.copyOf(chars, chars.length * 2);
+                }
+            }
+        }
+
+        return SourceBuffer.of(chars, n);
+    }
+
+    // Copies source into the context's char buffer, which is valid until the next read.
+    public SourceBuffer read(CharSequence source) {
+        int n = source.length();
+        if (n > chars.length) {
+            chars = new char[Math.max(n, chars.length * 2)];
+        }
+
+        if (source instanceof String) {
+            ((String) source).getChars(0, n, chars, 0);
+        } else {
+            for (int i = 0; i < n; i++) {
+                chars[i] = source.charAt(i);
+            }
+        }
+
+        return SourceBuffer.of(chars, n);
+    }
+
+    // Writes VM text to output, which the writer buffers itself.
+    public VMWriter textWriter(OutputStream output) {
+        return textWriter(new OutputStreamWriter(output));
+    }
+
+    public VMWriter textWriter(Writer output) {
+        textWriter.reset(output);
+        return textWriter;
+    }
+
+    public VMWriter binaryWriter(OutputStream output) throws IOException {
+        if (binaryWriter == null) {
+            binaryWriter = new BinaryVMWriter(output);
+        } else {
+            binaryWriter.reset(output);
+        }
+        return binaryWriter;
+    }
+
+    public VMWriter optimizer(VMWriter output) {
+        optimizer.reset(output);
+        return optimizer;
+    }
+
+    public CompilationEngine compilationEngine(SourceBuffer input, VMWriter output) throws IOException {
+        if (compilationEngine == null) {
+            compilationEngine = new CompilationEngine(input, output);
+        } else {
+            compilationEngine.reset(input, output);
+        }
+        return compilationEngine;
+    }
+}
@@ -0,0 +1,22 @@
+package lib;
+
+/**
+ * A problem found in a source, with the line and column (both counted from
+ * 1) where it was found.
+ */
+public final class Diagnostic {
+    public final int line;
+    public final int column;
+    public final String message;
+
+    public Diagnostic(int line, int column, String message) {
+        this.line = line;
+        this.column = column;
+        this.message = message;
+    }
+
+    @Override
+    public String toString() {
+        return line + ":" + column + ": " + message;
+    }
+}
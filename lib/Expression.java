@@ -0,0 +1,288 @@
+package lib;
+
+import java.util.List;
+
+/**
+ * Tree of a Jack expression, built by the compilation engine so that it can
+ * be simplified before CodeGenerator writes it. Nodes are tagged with their
+ * kind; only the fields that kind uses are set.
+ */
+final class Expression {
+    enum Kind {
+        CONSTANT,
+        VARIABLE,
+        ARRAY,
+        STRING,
+        // string literal kept in a static, built on first use by a call to name
+        INTERNED_STRING,
+        CALL,
+        UNARY,
+        BINARY,
+        // operand * 2^value, computed by repeated doubling
+        DOUBLE;
+    }
+
+    final Kind kind;
+    // CONSTANT value, VARIABLE/ARRAY index or DOUBLE exponent
+    int value;
+    Segment segment;
+    // STRING text, INTERNED_STRING initializer or CALL name
+    String name;
+    char operator;
+    Expression left;
+    Expression right;
+    List<Expression> arguments;
+
+    private Expression(Kind kind) {
+        this.kind = kind;
+    }
+
+    static Expression constant(int value) {
+        Expression expression = new Expression(Kind.CONSTANT);
+        expression.value = value;
+        return expression;
+    }
+
+    static Expression variable(Segment segment, int index) {
+        Expression expression = new Expression(Kind.VARIABLE);
+        expression.segment = segment;
+        expression.value = index;
+        return expression;
+    }
+
+    static Expression array(Segment segment, int index, Expression subscript) {
+        Expression array = new Expression(Kind.ARRAY);
+        array.segment = segment;
+        array.value = index;
+        array.left = subscript;
+        return array;
+    }
+
+    static Expression string(String text) {
+        Expression expression = new Expression(Kind.STRING);
+        expression.name = text;
+        return expression;
+    }
+
+    static Expression internedString(int slot, String initializer) {
+        Expression expression = new Expression(Kind.INTERNED_STRING);
+        expression.segment = Segment.STATIC;
+        expression.value = slot;
+        expression.name = initializer;
+        return expression;
+    }
+
+    // receiver is pushed as the hidden first argument, or null for a function call
+    static Expression call(String name, Expression receiver, List<Expression> arguments) {
+        Expression expression = new Expression(Kind.CALL);
+        expression.name = name;
+        expression.left = receiver;
+        expression.arguments = arguments;
+        return expression;
+    }
+
+    static Expression unary(char operator, Expression operand) {
+        Expression expression = new Expression(Kind.UNARY);
+        expression.operator = operator;
+        expression.left = operand;
+        return expression;
+    }
+
+    static Expression binary(char operator, Expression left, Expression right) {
+        Expression expression = new Expression(Kind.BINARY);
+        expression.operator = operator;
+        expression.left = left;
+        expression.right = right;
+        return expression;
+    }
+
+    private static Expression doubled(Expression operand, int times) {
+        Expression expression = new Expression(Kind.DOUBLE);
+        expression.left = operand;
+        expression.value = times;
+        return expression;
+    }
+
+    boolean isConstant(int value) {
+        return kind == Kind.CONSTANT && this.value == value;
+    }
+
+    // true if evaluating this has no effect besides its value
+    boolean isPure() {
+        switch (kind) {
+            case CONSTANT:
+            case VARIABLE:
+                return true;
+            case ARRAY:
+            case UNARY:
+            case DOUBLE:
+                return left.isPure();
+            case BINARY:
+                // Math.divide stops the program on division by zero
+                return operator != '/' && left.isPure() && right.isPure();
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns an equivalent tree with constant subexpressions evaluated the
+     * way the VM would (16 bit two's complement) and cheap replacements for
+     * operations on known operands.
+     */
+    Expression fold() {
+        switch (kind) {
+            case ARRAY:
+            case DOUBLE:
+                left = left.fold();
+                return this;
+            case CALL:
+                if (left != null) {
+                    left = left.fold();
+                }
+                arguments.replaceAll(Expression::fold);
+                return this;
+            case UNARY:
+                left = left.fold();
+                if (left.kind == Kind.CONSTANT) {
+                    return constant((short) (operator == '-' ? -left.value : ~left.value));
+                }
+                if (left.kind == Kind.UNARY && left.operator == operator) {
+                    return left.left;
+                }
+                return this;
+            case BINARY:
+                left = left.fold();
+                right = right.fold();
+                return foldBinary();
+            default:
+                return this;
+        }
+    }
+
+    private Expression foldBinary() {
+        if (left.kind == Kind.CONSTANT && right.kind == Kind.CONSTANT) {
+            Expression folded = evaluate(operator, left.value, right.value);
+            if (folded != null) {
+                return folded;
+            }
+        }
+
+        switch (operator) {
+            case '+':
+                if (right.isConstant(0)) {
+                    return left;
+                }
+                if (left.isConstant(0)) {
+                    return right;
+                }
+                if (right.kind == Kind.CONSTANT && right.value < 0 && right.value != Short.MIN_VALUE) {
+                    // saves the neg of the constant
+                    return binary('-', left, constant(-right.value));
+                }
+                break;
+            case '-':
+                if (right.isConstant(0)) {
+                    return left;
+                }
+                if (left.isConstant(0)) {
+                    return unary('-', right).fold();
+                }
+                if (right.kind == Kind.CONSTANT && right.value < 0 && right.value != Short.MIN_VALUE) {
+                    return binary('+', left, constant(-right.value));
+                }
+                break;
+            case '*':
+                if (right.kind == Kind.CONSTANT) {
+                    return multiply(left, right.value);
+                }
+                if (left.kind == Kind.CONSTANT) {
+                    return multiply(right, left.value);
+                }
+                break;
+            case '/':
+                if (right.isConstant(1)) {
+                    return left;
+                }
+                if (right.isConstant(-1)) {
+                    return unary('-', left).fold();
+                }
+                break;
+            case '&':
+                if (right.isConstant(-1)) {
+                    return left;
+                }
+                if (left.isConstant(-1)) {
+                    return right;
+                }
+                if ((right.isConstant(0) && left.isPure()) || (left.isConstant(0) && right.isPure())) {
+                    return constant(0);
+                }
+                break;
+            case '|':
+                if (right.isConstant(0)) {
+                    return left;
+                }
+                if (left.isConstant(0)) {
+                    return right;
+                }
+                break;
+            default:
+                break;
+        }
+
+        return this;
+    }
+
+    // operand * factor, where factor is a constant and operand is not
+    private Expression multiply(Expression operand, int factor) {
+        if (factor == 0) {
+            // x & 0 still evaluates x for its side effects, without a call
+            return operand.isPure() ? constant(0) : binary('&', operand, constant(0));
+        }
+        if (factor == 1) {
+            return operand;
+        }
+        if (factor == -1) {
+            return unary('-', operand).fold();
+        }
+
+        int magnitude = Math.abs(factor);
+        if (magnitude < 1 << 15 && (magnitude & (magnitude - 1)) == 0) {
+            Expression product = doubled(operand, Integer.numberOfTrailingZeros(magnitude));
+            return factor < 0 ? unary('-', product) : product;
+        }
+
+        return this;
+    }
+
+    // null if the operation can't be evaluated at compile time
+    private static Expression evaluate(char operator, int a, int b) {
+        switch (operator) {
+            case '+':
+                return constant((short) (a + b));
+            case '-':
+                return constant((short) (a - b));
+            case '*':
+                return constant((short) (a * b));
+            case '/':
+                // left to Math.divide, which reports the error
+                if (b == 0 || (a == Short.MIN_VALUE && b == -1)) {
+                    return null;
+                }
+                return constant((short) (a / b));
+            case '&':
+                return constant((short) (a & b));
+            case '|':
+                return constant((short) (a | b));
+            case '<':
+                return constant(a < b ? -1 : 0);
+            case '>':
+                return constant(a > b ? -1 : 0);
+            case '=':
+                return constant(a == b ? -1 : 0);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package lib;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces calls to small subroutines with their bodies, across every class
+ * of a program. The bodies are taken from the compiled VM code, where the
+ * class's SymbolTable has already mapped each field, argument and static to
+ * its segment and index.
+ *
+ * Only straight-line bodies that make no calls of their own and keep
+ * nothing in local variables are inlined: getters, setters and small
+ * computations on their arguments. At the call site the arguments are
+ * already on the stack, so they are popped into temp and the body reads
+ * them from there. A method's object goes into pointer 1 and its fields
+ * are read through that. The generated code never keeps anything in temp or
+ * that across a call, so both are free at every call site.
+ */
+public class Inliner {
+    // longest body that is inlined, not counting a method's prologue and the return
+    public static final int MAX_BODY_SIZE = 8;
+
+    // arguments are kept in temp 0 to temp 7
+    private static final int MAX_ARGUMENTS = 8;
+
+    private static class Body {
+        final VMBuffer code;
+        final boolean method;
+        // statics belong to the class's own file, so the body can only go there
+        final boolean usesStatic;
+        final int arguments;
+
+        Body(VMBuffer code, boolean method, boolean usesStatic, int arguments) {
+            this.code = code;
+            this.method = method;
+            this.usesStatic = usesStatic;
+            this.arguments = arguments;
+        }
+    }
+
+    private final Map<String, Body> bodies = new HashMap<>();
+
+    // Looks for functions of a compiled class that can be inlined.
+    public void add(VMBuffer code) {
+        for (int i = 0; i < code.size; i++) {
+            if (code.ops[i] == Opcode.FUNCTION) {
+                Body body = extractBody(code, i);
+                if (body != null) {
+                    bodies.put(code.names[i], body);
+                }
+            }
+        }
+    }
+
+    private static Body extractBody(VMBuffer code, int function) {
+        int start = function + 1;
+        boolean method = code.is(start, Opcode.PUSH, Segment.ARGUMENT, 0)
+                && code.is(start + 1, Opcode.POP, Segment.POINTER, 0);
+        if (method) {
+            start += 2;
+        }
+
+        VMBuffer body = new VMBuffer();
+        boolean usesStatic = false;
+        int arguments = method ? 1 : 0;
+
+        for (int i = start; i < code.size; i++) {
+            int op = code.ops[i];
+
+            if (op == Opcode.RETURN) {
+                return new Body(body, method, usesStatic, arguments);
+            }
+
+            if (body.size == MAX_BODY_SIZE) {
+                return null;
+            }
+
+            if (op == Opcode.PUSH || op == Opcode.POP) {
+                Segment segment = code.segments[i];
+
+                if (segment == Segment.ARGUMENT) {
+                    arguments = Math.max(arguments, code.values[i] + 1);
+                } else if (segment == Segment.STATIC) {
+                    usesStatic = true;
+                } else if (segment == Segment.THIS) {
+                    if (!method) {
+                        return null;
+                    }
+                } else if (segment != Segment.CONSTANT) {
+                    // local, temp, that and pointer are needed by the call site
+                    return null;
+                }
+            } else if (op >= Opcode.PUSH) {
+                // labels, jumps and calls
+                return null;
+            }
+
+            body.add(code, i);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns code with every call to an inlinable function replaced by the
+     * function's body, or code itself when there is no such call.
+     */
+    public VMBuffer inline(VMBuffer code) {
+        VMBuffer result = null;
+        String className = null;
+
+        for (int i = 0; i < code.size; i++) {
+            if (code.ops[i] == Opcode.FUNCTION) {
+                String name = code.names[i];
+                className = name.substring(0, name.indexOf('.') + 1);
+            }
+
+            Body body = code.ops[i] == Opcode.CALL ? bodies.get(code.names[i]) : null;
+            if (body != null && !canInline(body, code.values[i], code.names[i], className)) {
+                body = null;
+            }
+
+            if (body == null) {
+                if (result != null) {
+                    result.add(code, i);
+                }
+                continue;
+            }
+
+            if (result == null) {
+                result = new VMBuffer();
+                for (int j = 0; j < i; j++) {
+                    result.add(code, j);
+                }
+            }
+
+            int nArgs = code.values[i];
+            int length = body.code.size;
+
+            // "do f();" throws the result away; a body that ends in a plain push
+            // needs neither that push nor the pop. An array store also pops its
+            // value into temp 0, but goes on with pop pointer 1 to use it.
+            if (code.is(i + 1, Opcode.POP, Segment.TEMP, 0) && !code.is(i + 2, Opcode.POP, Segment.POINTER, 1)
+                    && body.code.ops[length - 1] == Opcode.PUSH) {
+                length--;
+                i++;
+            }
+
+            // a method called on this can use this directly
+            boolean self = body.method && nArgs == 1 && result.is(result.size - 1, Opcode.PUSH, Segment.POINTER, 0);
+            if (self) {
+                result.removeLast();
+                nArgs = 0;
+            }
+
+            // the inlined code stands for the call
+            result.setSourceLine(code.lines[i]);
+            writeBody(body, nArgs, length, self, result);
+        }
+
+        return result != null ? result : code;
+    }
+
+    private static boolean canInline(Body body, int nArgs, String function, String className) {
+        if (nArgs > MAX_ARGUMENTS || nArgs < body.arguments) {
+            return false;
+        }
+        return !body.usesStatic || function.startsWith(className);
+    }
+
+    // self: the body runs on the caller's own object, whose pointer is not on the stack
+    private static void writeBody(Body body, int nArgs, int length, boolean self, VMBuffer out) {
+        Segment object = self ? Segment.THIS : Segment.THAT;
+        int pointer = self ? 0 : 1;
+
+        // the last argument is on top of the stack
+        for (int argument = nArgs - 1; argument >= 0; argument--) {
+            if (body.method && argument == 0) {
+                out.add(Opcode.POP, Segment.POINTER, 1, null);
+            } else {
+                out.add(Opcode.POP, Segment.TEMP, argument, null);
+            }
+        }
+
+        VMBuffer code = body.code;
+        for (int i = 0; i < length; i++) {
+            Segment segment = code.segments[i];
+
+            if (segment == Segment.ARGUMENT && body.method && code.values[i] == 0) {
+                out.add(code.ops[i], Segment.POINTER, pointer, null);
+            } else if (segment == Segment.ARGUMENT) {
+                out.add(code.ops[i], Segment.TEMP, code.values[i], null);
+            } else if (segment == Segment.THIS) {
+                out.add(code.ops[i], object, code.values[i], null);
+            } else {
+                out.add(code.ops[i], segment, code.values[i], code.names[i]);
+            }
+        }
+    }
+}
@@ -2,144 +2,353 @@ package lib;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class JackTokenizer {
-    private Reader reader;
+    private static final String SYMBOLS = "{}()[].,;+-_*/&|<>=~";
+
+    // lookahead ring, must be a power of two; peek(k) works for k < LOOKAHEAD
+    private static final int LOOKAHEAD = 4;
+
+    // reset() keeps the interned identifiers for the next source until there are this many
+    private static final int MAX_RETAINED_NAMES = 1 << 14;
+
+    // the whole source is scanned in place; position is the index of currentChar
+    private SourceBuffer source;
+    private int length;
+    private int position = -1;
     private int currentChar;
-    public Token currentToken = new Token();
-    private Deque<Integer> charBuffer = new ArrayDeque<>();
-    private Deque<Token> tokenBuffer = new ArrayDeque<>();
+
+    // ring[head] is the current token, followed by the tokens already scanned ahead
+    private final Token[] ring = new Token[LOOKAHEAD];
+    private int head = 0;
+    private int buffered = 1;
+    public Token currentToken;
+
+    // open-addressing table of the identifiers seen so far, so a name that
+    // occurs again is returned as the same String instead of a new copy
+    private String[] names = new String[256];
+    private int nameCount = 0;
+
+    // offsets where lines start, filled in by line() as far as it has been asked
+    // about, so scanning itself doesn't look for newlines
+    private int[] lineStarts = new int[256];
+    private int lineCount = 1;
+    private int linesScanned = 0;
+
+    // characters that start no token; they are skipped and scanning goes on
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
 
     public JackTokenizer(Reader reader) throws IOException {
-        this.reader = reader;
+        this(SourceBuffer.read(reader));
+    }
+
+    public JackTokenizer(char[] source, int length) {
+        this(SourceBuffer.of(source, length));
+    }
+
+    public JackTokenizer(SourceBuffer source) {
+        for (int i = 0; i < LOOKAHEAD; i++) {
+            ring[i] = new Token();
+        }
+
+        reset(source);
+    }
+
+    /**
+     * Starts over on another source, reusing the token ring and the table of
+     * identifiers, which usually already holds most of the names the next
+     * class of a program uses.
+     */
+    public void reset(SourceBuffer source) {
+        this.source = source;
+        this.length = source.length();
+        position = -1;
+        lineCount = 1;
+        linesScanned = 0;
+        diagnostics.clear();
+        head = 0;
+        buffered = 1;
+        currentToken = ring[head];
+
+        if (nameCount > MAX_RETAINED_NAMES) {
+            Arrays.fill(names, null);
+            nameCount = 0;
+        }
+
         this.getChar();
     }
 
+    /**
+     * Returns the problems found in the source scanned so far, such as stray
+     * characters, which don't stop the scan.
+     */
+    public List<Diagnostic> diagnostics() {
+        return diagnostics;
+    }
+
     public boolean hasMoreTokens() {
         return currentChar != -1;
     }
 
-    public String peekNextToken(int lookahead) throws IOException {
-        Token savedCurrentToken = (Token) currentToken.clone();
-
-        for (int i = 0; i < lookahead; i++) {
-            advance();
-            tokenBuffer.add((Token) currentToken.clone());
+    /**
+     * Returns the token k positions after the current one (peek(0) is the
+     * current token) without consuming anything. The returned token belongs
+     * to the tokenizer and is overwritten as the tokenizer moves on.
+     */
+    public Token peek(int k) {
+        while (buffered <= k) {
+            Token previous = ring[(head + buffered - 1) & (LOOKAHEAD - 1)];
+            scan(ring[(head + buffered) & (LOOKAHEAD - 1)], previous);
+            buffered++;
         }
 
-        currentToken = savedCurrentToken;
+        return ring[(head + k) & (LOOKAHEAD - 1)];
+    }
+
+    public TokenType peekType(int k) {
+        return peek(k).type;
+    }
 
-        return tokenBuffer.getFirst().toString();
+    public char peekSymbol(int k) {
+        return peek(k).symbol;
     }
 
-    private void getChar() throws IOException {
-        if (charBuffer.size() > 0) {
-            currentChar = charBuffer.poll();
-        } else {
-            currentChar = reader.read();
+    private void getChar() {
+        position++;
+        currentChar = position < length ? source.charAt(position) : -1;
+    }
+
+    /**
+     * Returns the line (counted from 1) of a source offset, such as the offset
+     * of a token. Asking about offsets in order, as the parser does, reads
+     * every character once.
+     */
+    public int line(int offset) {
+        for (; linesScanned < offset; linesScanned++) {
+            if (source.charAt(linesScanned) == '\n') {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                }
+                lineStarts[lineCount++] = linesScanned + 1;
+            }
         }
+        if (offset >= lineStarts[lineCount - 1]) {
+            return lineCount;
+        }
+
+        int low = 0;
+        int high = lineCount - 1;
+
+        // last line start <= offset
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lineStarts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low + 1;
+    }
+
+    // column (counted from 1) of a scanned offset
+    public int column(int offset) {
+        return offset - lineStarts[line(offset) - 1] + 1;
     }
 
     private void ungetChar() {
-        charBuffer.add(currentChar);
+        // the next getChar() reads currentChar again
+        position--;
     }
 
     public void advance() throws IOException {
-        if (tokenBuffer.size() > 0) {
-            currentToken = tokenBuffer.pop();
-        } else if (hasMoreTokens()) {
-            // Skip white spaces and bunch of specified characters
-            while (Character.isWhitespace(currentChar)) {
-                getChar();
+        if (buffered == 1) {
+            peek(1);
+        }
+
+        head = (head + 1) & (LOOKAHEAD - 1);
+        buffered--;
+        currentToken = ring[head];
+    }
+
+    // Scans the next token into token. At the end of input the previous token
+    // is repeated. A stray character is reported and skipped.
+    private void scan(Token token, Token previous) {
+        while (hasMoreTokens()) {
+            skipWhitespaceAndComments();
+
+            if (!hasMoreTokens() || startsToken(currentChar)) {
+                break;
             }
 
-            // Skip comment
-            if (currentChar == '/') {
+            diagnostics.add(new Diagnostic(line(position), column(position),
+                    "Unexpected character '" + (char) currentChar + "'"));
+            getChar();
+        }
+
+        if (!hasMoreTokens()) {
+            token.copyFrom(previous);
+            token.offset = length;
+            token.pastEnd = true;
+            return;
+        }
+
+        int offset = position;
+
+        // Symbol
+        if (SYMBOLS.indexOf(currentChar) >= 0) {
+            token.setSymbol((char) currentChar);
+        }
+
+        // Integer Constant
+        else if (Character.isDigit(currentChar)) {
+            int intVal = 0;
+            while (Character.isDigit(currentChar)) {
+                // saturate so that an over-long literal is still reported as out of range
+                intVal = Math.min(intVal * 10 + Character.digit(currentChar, 10), Short.MAX_VALUE + 1);
                 getChar();
-                if (currentChar == '/') {
-                    // Skip // style comment
-                    do {
-                        getChar();
-                    } while (hasMoreTokens() && currentChar != '\r' && currentChar != '\n');
+            }
+            ungetChar();
+            token.setIntVal(intVal);
+        }
 
-                    advance();
-                    return;
-                } else if (currentChar == '*') {
-                    // Skip /* */ style comment
-                    getChar();
-                    int prevChar = currentChar;
-                    while (hasMoreTokens()) {
-                        getChar();
-                        if (prevChar == '*' && currentChar == '/') {
-                            getChar();
-                            break;
-                        }
-                        prevChar = currentChar;
-                    }
+        // String Constant
+        else if (currentChar == '"') {
+            getChar();
+            if (!hasMoreTokens()) {
+                throw error(offset, "Double quote expected");
+            }
 
-                    advance();
-                    return;
-                } else {
-                    ungetChar();
-                    currentChar = '/';
+            int start = position;
+
+            while (currentChar != '"') {
+                getChar();
+                if (!hasMoreTokens()) {
+                    throw error(offset, "Double quote expected");
                 }
             }
+            token.setStringVal(source, start, position);
+        }
 
-            // Symbol
-            if ("{}()[].,;+-_*/&|<>=~".contains(String.valueOf((char) currentChar))) {
-                currentToken.setSymbol((char) currentChar);
+        // Keyword / identifier
+        else if (Character.isLetterOrDigit(currentChar) || currentChar == '_') {
+            int start = position;
+
+            while (Character.isLetterOrDigit(currentChar) || currentChar == '_') {
+                getChar();
             }
+            ungetChar();
 
-            // Integer Constant
-            else if (Character.isDigit(currentChar)) {
-                StringBuilder sb = new StringBuilder();
-                while (Character.isDigit(currentChar)) {
-                    sb.append((char) currentChar);
-                    getChar();
-                }
-                ungetChar();
-                currentToken.setIntVal(Integer.parseInt(sb.toString()));
+            KeyWord keyWord = KeywordMatcher.classify(source, start, position + 1);
+            if (keyWord != null) {
+                token.setKeyWord(keyWord);
+            } else {
+                token.setIdentifier(intern(start, position + 1));
             }
+        }
 
-            // String Constant
-            else if (currentChar == '"') {
+        token.offset = offset;
+        getChar();
+    }
+
+    private void skipWhitespaceAndComments() {
+        while (hasMoreTokens()) {
+            // Skip white spaces and bunch of specified characters
+            while (Character.isWhitespace(currentChar)) {
                 getChar();
-                if (!hasMoreTokens()) {
-                    throw new Error("Double quote expected");
-                }
+            }
 
-                StringBuilder sb = new StringBuilder();
+            if (currentChar != '/') {
+                break;
+            }
 
-                while (currentChar != '"') {
-                    sb.append((char) currentChar);
+            // Skip comment
+            getChar();
+            if (currentChar == '/') {
+                // Skip // style comment
+                do {
+                    getChar();
+                } while (hasMoreTokens() && currentChar != '\r' && currentChar != '\n');
+            } else if (currentChar == '*') {
+                // Skip /* */ style comment
+                getChar();
+                int prevChar = currentChar;
+                while (hasMoreTokens()) {
                     getChar();
-                    if (!hasMoreTokens()) {
-                        throw new Error("Double quote expected");
+                    if (prevChar == '*' && currentChar == '/') {
+                        getChar();
+                        break;
                     }
+                    prevChar = currentChar;
                 }
-                currentToken.setStringVal(sb.toString());
+            } else {
+                ungetChar();
+                currentChar = '/';
+                break;
             }
+        }
+    }
 
-            // Keyword / identifier
-            else if (Character.isLetterOrDigit(currentChar) || currentChar == '_') {
-                StringBuilder sb = new StringBuilder();
+    private static boolean startsToken(int c) {
+        return SYMBOLS.indexOf(c) >= 0 || c == '"' || Character.isLetterOrDigit(c) || c == '_';
+    }
 
-                while (Character.isLetterOrDigit(currentChar) || currentChar == '_') {
-                    sb.append((char) currentChar);
-                    getChar();
-                }
-                ungetChar();
+    private CompilationException error(int offset, String message) {
+        return new CompilationException(List.of(new Diagnostic(line(offset), column(offset), message)));
+    }
+
+    private String intern(int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
 
-                if (KeywordMatcher.match(sb.toString())) {
-                    currentToken.setKeyWord(KeyWord.valueOf(sb.toString().toUpperCase()));
-                } else {
-                    currentToken.setIdentifier(sb.toString());
+        int mask = names.length - 1;
+        for (int slot = (hash ^ (hash >>> 16)) & mask;; slot = (slot + 1) & mask) {
+            String name = names[slot];
+
+            if (name == null) {
+                name = source.substring(start, end);
+                names[slot] = name;
+                if (++nameCount * 2 > names.length) {
+                    growNames();
                 }
+                return name;
             }
 
-            getChar();
+            if (name.hashCode() == hash && name.length() == end - start && matches(name, start)) {
+                return name;
+            }
+        }
+    }
+
+    private boolean matches(String name, int start) {
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growNames() {
+        String[] oldNames = names;
+        names = new String[oldNames.length * 2];
+        int mask = names.length - 1;
+
+        for (String name : oldNames) {
+            if (name != null) {
+                int hash = name.hashCode();
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (names[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                names[slot] = name;
+            }
         }
     }
 
@@ -151,7 +360,7 @@ public class JackTokenizer {
         return currentToken.keyWord;
     }
 
-    public Character symbol() {
+    public char symbol() {
         return currentToken.symbol;
     }
 
@@ -159,11 +368,11 @@ public class JackTokenizer {
         return currentToken.identifier;
     }
 
-    public Integer intVal() {
+    public int intVal() {
         return currentToken.intVal;
     }
 
     public String stringVal() {
-        return currentToken.stringVal;
+        return currentToken.stringVal();
     }
 }
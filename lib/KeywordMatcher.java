@@ -1,52 +1,110 @@
 package lib;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class KeywordMatcher {
-    private static final String[] keywords = {
-            "class", "constructor", "function", "method", "field", "static",
-            "var", "int", "char", "boolean", "void", "true", "false", "null",
-            "this", "let", "do", "if", "else", "while", "return"
-    };
-
-    private static final Trie keywordTrie = new Trie();
+    // lowercase spelling of every keyword, indexed by ordinal
+    private static final String[] keywords = new String[KeyWord.values().length];
 
     static {
-        for (String keyword : keywords) {
-            keywordTrie.insert(keyword);
+        for (KeyWord keyWord : KeyWord.values()) {
+            keywords[keyWord.ordinal()] = keyWord.toString();
         }
     }
 
     public static boolean match(String word) {
-        return keywordTrie.has(word);
+        return classify(SourceBuffer.of(word.toCharArray(), word.length()), 0, word.length()) != null;
     }
 
-    private static class TrieNode {
-        Map<Character, TrieNode> children = new HashMap<>();
-        boolean isEndOfWord = false;
-    }
+    /**
+     * Returns the keyword spelled by source[start, end), or null if it is not
+     * a keyword. The length and at most two characters pick the only possible
+     * candidate, which is then compared character by character.
+     */
+    static KeyWord classify(SourceBuffer source, int start, int end) {
+        if (end <= start) {
+            return null;
+        }
 
-    private static class Trie {
-        TrieNode root = new TrieNode();
+        KeyWord candidate = null;
+        char first = source.charAt(start);
 
-        void insert(String word) {
-            TrieNode current = root;
-            for (char ch : word.toCharArray()) {
-                current = current.children.computeIfAbsent(ch, key -> new TrieNode());
-            }
-            current.isEndOfWord = true;
+        switch (end - start) {
+            case 2:
+                if (first == 'd') {
+                    candidate = KeyWord.DO;
+                } else if (first == 'i') {
+                    candidate = KeyWord.IF;
+                }
+                break;
+            case 3:
+                if (first == 'i') {
+                    candidate = KeyWord.INT;
+                } else if (first == 'l') {
+                    candidate = KeyWord.LET;
+                } else if (first == 'v') {
+                    candidate = KeyWord.VAR;
+                }
+                break;
+            case 4:
+                if (first == 'c') {
+                    candidate = KeyWord.CHAR;
+                } else if (first == 'e') {
+                    candidate = KeyWord.ELSE;
+                } else if (first == 'n') {
+                    candidate = KeyWord.NULL;
+                } else if (first == 't') {
+                    candidate = source.charAt(start + 1) == 'h' ? KeyWord.THIS : KeyWord.TRUE;
+                } else if (first == 'v') {
+                    candidate = KeyWord.VOID;
+                }
+                break;
+            case 5:
+                if (first == 'c') {
+                    candidate = KeyWord.CLASS;
+                } else if (first == 'f') {
+                    candidate = source.charAt(start + 1) == 'a' ? KeyWord.FALSE : KeyWord.FIELD;
+                } else if (first == 'w') {
+                    candidate = KeyWord.WHILE;
+                }
+                break;
+            case 6:
+                if (first == 'm') {
+                    candidate = KeyWord.METHOD;
+                } else if (first == 'r') {
+                    candidate = KeyWord.RETURN;
+                } else if (first == 's') {
+                    candidate = KeyWord.STATIC;
+                }
+                break;
+            case 7:
+                if (first == 'b') {
+                    candidate = KeyWord.BOOLEAN;
+                }
+                break;
+            case 8:
+                if (first == 'f') {
+                    candidate = KeyWord.FUNCTION;
+                }
+                break;
+            case 11:
+                if (first == 'c') {
+                    candidate = KeyWord.CONSTRUCTOR;
+                }
+                break;
+            default:
+                break;
         }
 
-        boolean has(String word) {
-            TrieNode current = root;
-            for (char ch : word.toCharArray()) {
-                current = current.children.get(ch);
-                if (current == null) {
-                    return false;
-                }
+        if (candidate == null) {
+            return null;
+        }
+
+        String keyword = keywords[candidate.ordinal()];
+        for (int i = 1; i < keyword.length(); i++) {
+            if (source.charAt(start + i) != keyword.charAt(i)) {
+                return null;
             }
-            return current.isEndOfWord;
         }
+
+        return candidate;
     }
 }
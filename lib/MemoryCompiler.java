@@ -0,0 +1,115 @@
+package lib;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiles Jack sources held in memory into VM text, without touching the
+ * file system. Sources are given as a map from a name of the caller's
+ * choosing (usually the class or file name) to the source text; results
+ * come back under the same names, either one at a time to a Listener or all
+ * together as a map.
+ *
+ * Each compile takes a CompilerContext of its own from the shared pool, so
+ * one MemoryCompiler can be shared by threads compiling at the same time.
+ */
+public class MemoryCompiler {
+    public interface Listener {
+        void compiled(String name, String vmCode);
+
+        void failed(String name, Throwable error);
+    }
+
+    // outcome of one source; exactly one of vmCode and error is set
+    public static final class Result {
+        public final String vmCode;
+        public final Throwable error;
+
+        Result(String vmCode, Throwable error) {
+            this.vmCode = vmCode;
+            this.error = error;
+        }
+
+        public boolean ok() {
+            return error == null;
+        }
+    }
+
+    private boolean optimize = false;
+    private boolean internStrings = false;
+
+    // same as -O on the command line
+    public MemoryCompiler setOptimize(boolean optimize) {
+        this.optimize = optimize;
+        return this;
+    }
+
+    // same as --intern-strings on the command line
+    public MemoryCompiler setInternStrings(boolean internStrings) {
+        this.internStrings = internStrings;
+        return this;
+    }
+
+    /**
+     * Compiles every source in the map's order, telling listener about each
+     * one as soon as it is done. A source that fails doesn't stop the rest.
+     */
+    public void compile(Map<String, ? extends CharSequence> sources, Listener listener) {
+        for (Map.Entry<String, ? extends CharSequence> source : sources.entrySet()) {
+            String vmCode;
+
+            try {
+                vmCode = compile(source.getValue());
+            } catch (Exception e) {
+                listener.failed(source.getKey(), e);
+                continue;
+            }
+
+            listener.compiled(source.getKey(), vmCode);
+        }
+    }
+
+    // Compiles every source and returns the results in the map's order.
+    public Map<String, Result> compile(Map<String, ? extends CharSequence> sources) {
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        compile(sources, new Listener() {
+            @Override
+            public void compiled(String name, String vmCode) {
+                results.put(name, new Result(vmCode, null));
+            }
+
+            @Override
+            public void failed(String name, Throwable error) {
+                results.put(name, new Result(null, error));
+            }
+        });
+
+        return results;
+    }
+
+    // Compiles a single class; errors in the source are thrown as a CompilationException.
+    public String compile(CharSequence source) throws IOException, CompilationException {
+        CompilerContext context = CompilerContext.acquire();
+        StringWriter output = new StringWriter(source.length());
+
+        try {
+            VMWriter vmWriter = context.textWriter(output);
+            if (optimize) {
+                vmWriter = context.optimizer(vmWriter);
+            }
+
+            CompilationEngine compilationEngine = context.compilationEngine(context.read(source), vmWriter);
+            compilationEngine.setFoldConstants(optimize);
+            compilationEngine.setInternStrings(internStrings);
+            compilationEngine.setExecutor(null);
+            compilationEngine.compileClass();
+        } finally {
+            context.release();
+        }
+
+        return output.toString();
+    }
+}
@@ -0,0 +1,433 @@
+package lib;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sits in front of another VMWriter and rewrites the naive sequences the
+ * compilation engine emits into shorter ones. Commands are buffered one
+ * function at a time; when the next function starts (or on flush) the
+ * buffered one is optimized and passed on.
+ *
+ * Local rewrites:
+ * - constant conditions: "push constant 1; neg; not; if-goto L" (while true)
+ *   disappears, a condition that is always true becomes "goto L"
+ * - "not; not" and "neg; neg" cancel out
+ * - an array store of a single pushed value, "push x; pop temp 0; pop pointer 1;
+ *   push temp 0; pop that 0", becomes "pop pointer 1; push x; pop that 0"
+ *
+ * Control flow:
+ * - if/else is emitted as "not; if-goto ELSE; then; goto END; label ELSE; else";
+ *   the branch is inverted to "if-goto THEN; else; goto END; label THEN; then",
+ *   which drops the not
+ * - while loops are rotated so that the condition is tested at the bottom,
+ *   saving the not and the goto on every iteration
+ * Both only apply to conditions that are known to be 0 or -1: "not; if-goto"
+ * jumps unless the value is -1, a bare "if-goto" on anything but 0.
+ * - code after goto/return that no label leads to is dropped, as are gotos to
+ *   the very next command, labels nobody jumps to, and jumps to a goto are
+ *   sent straight to its target
+ */
+public class PeepholeOptimizer extends VMBuffer {
+    private static final int NOT = Command.NOT.ordinal();
+    private static final int NEG = Command.NEG.ordinal();
+    private static final int EQ = Command.EQ.ordinal();
+    private static final int GT = Command.GT.ordinal();
+    private static final int LT = Command.LT.ordinal();
+    private static final int AND = Command.AND.ordinal();
+    private static final int OR = Command.OR.ordinal();
+    private static final int MAX_ROUNDS = 8;
+
+    private VMWriter output;
+    private VMBuffer scratch = new VMBuffer();
+    private VMBuffer result = new VMBuffer();
+
+    // label name -> position and number of jumps to it, for the buffer being rewritten
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Integer> lastReference = new HashMap<>();
+
+    public PeepholeOptimizer(VMWriter output) {
+        this.output = output;
+    }
+
+    // Drops the function being buffered and passes the next ones on to output.
+    void reset(VMWriter output) {
+        this.output = output;
+        clear();
+    }
+
+    @Override
+    void writeFunction(String name, int nVars) throws IOException {
+        emitBuffered();
+        super.writeFunction(name, nVars);
+    }
+
+    @Override
+    void flush() throws IOException {
+        emitBuffered();
+        output.flush();
+    }
+
+    @Override
+    void close() throws IOException {
+        emitBuffered();
+        output.close();
+    }
+
+    private void emitBuffered() throws IOException {
+        if (size == 0) {
+            return;
+        }
+
+        VMBuffer optimized = optimize(this);
+        optimized.replay(output);
+        clear();
+    }
+
+    VMBuffer optimize(VMBuffer function) {
+        result.clear();
+        fold(function, result);
+        swap();
+
+        index(scratch);
+        result.clear();
+        restructure(scratch, 0, scratch.size, result);
+        swap();
+
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            int before = scratch.size;
+
+            result.clear();
+            fold(scratch, result);
+            swap();
+
+            result.clear();
+            cleanJumps(scratch, result);
+            swap();
+
+            if (scratch.size == before) {
+                break;
+            }
+        }
+
+        return scratch;
+    }
+
+    // the last pass always writes to result; make it the input of the next one
+    private void swap() {
+        VMBuffer t = scratch;
+        scratch = result;
+        result = t;
+    }
+
+    private void fold(VMBuffer in, VMBuffer out) {
+        int i = 0;
+
+        while (i < in.size) {
+            // commands made up below belong to the statement of the ones they replace
+            out.setSourceLine(in.lines[i]);
+
+            if (in.is(i, Opcode.PUSH, Segment.CONSTANT, 0) && in.is(i + 1, NEG)) {
+                // -0
+                out.add(Opcode.PUSH, Segment.CONSTANT, 0, null);
+                i += 2;
+            } else if (in.is(i, Opcode.PUSH, Segment.CONSTANT, 1) && in.is(i + 1, NEG) && in.is(i + 2, NOT)) {
+                // ~true
+                out.add(Opcode.PUSH, Segment.CONSTANT, 0, null);
+                i += 3;
+            } else if ((in.is(i, NOT) && in.is(i + 1, NOT)) || (in.is(i, NEG) && in.is(i + 1, NEG))) {
+                i += 2;
+            } else if (in.is(i, Opcode.PUSH, Segment.CONSTANT, 1) && in.is(i + 1, NEG) && in.is(i + 2, Opcode.IF_GOTO)) {
+                out.add(Opcode.GOTO, null, 0, in.names[i + 2]);
+                i += 3;
+            } else if (in.is(i, Opcode.PUSH, Segment.CONSTANT, 0) && in.is(i + 1, NOT) && in.is(i + 2, Opcode.IF_GOTO)) {
+                out.add(Opcode.GOTO, null, 0, in.names[i + 2]);
+                i += 3;
+            } else if (in.is(i, Opcode.PUSH) && in.segments[i] == Segment.CONSTANT && in.is(i + 1, Opcode.IF_GOTO)) {
+                // a constant condition either always or never jumps
+                if (in.values[i] != 0) {
+                    out.add(Opcode.GOTO, null, 0, in.names[i + 1]);
+                }
+                i += 2;
+            } else if (isArrayStoreOfSinglePush(in, i)) {
+                out.add(Opcode.POP, Segment.POINTER, 1, null);
+                out.add(in, i);
+                out.add(Opcode.POP, Segment.THAT, 0, null);
+                i += 5;
+            } else {
+                out.add(in, i);
+                i++;
+            }
+        }
+    }
+
+    private static boolean isArrayStoreOfSinglePush(VMBuffer in, int i) {
+        if (!in.is(i, Opcode.PUSH)
+                || !in.is(i + 1, Opcode.POP, Segment.TEMP, 0)
+                || !in.is(i + 2, Opcode.POP, Segment.POINTER, 1)
+                || !in.is(i + 3, Opcode.PUSH, Segment.TEMP, 0)
+                || !in.is(i + 4, Opcode.POP, Segment.THAT, 0)) {
+            return false;
+        }
+
+        // the value must not depend on the pointer it is moved past
+        Segment segment = in.segments[i];
+        return segment != Segment.THAT && !(segment == Segment.POINTER && in.values[i] == 1);
+    }
+
+    private void index(VMBuffer in) {
+        labels.clear();
+        references.clear();
+        lastReference.clear();
+
+        for (int i = 0; i < in.size; i++) {
+            if (in.ops[i] == Opcode.LABEL) {
+                labels.put(in.names[i], i);
+            } else if (in.ops[i] == Opcode.GOTO || in.ops[i] == Opcode.IF_GOTO) {
+                references.merge(in.names[i], 1, Integer::sum);
+                lastReference.put(in.names[i], i);
+            }
+        }
+    }
+
+    private int labelAt(String label) {
+        Integer position = labels.get(label);
+        return position != null ? position : -1;
+    }
+
+    private int referenceCount(String label) {
+        Integer count = references.get(label);
+        return count != null ? count : 0;
+    }
+
+    // Copies [from, to) while inverting if/else branches and rotating while
+    // loops. Constructs nest, so their parts are copied recursively.
+    private void restructure(VMBuffer in, int from, int to, VMBuffer out) {
+        int i = from;
+
+        while (i < to) {
+            int next = -1;
+
+            if (in.ops[i] == Opcode.LABEL) {
+                next = rotateLoop(in, i, to, out);
+            } else if (in.ops[i] == NOT) {
+                next = invertBranch(in, from, i, to, out);
+            }
+
+            if (next < 0) {
+                out.add(in, i);
+                next = i + 1;
+            }
+            i = next;
+        }
+    }
+
+    // label TOP; cond; not; if-goto EXIT; body; goto TOP; label EXIT
+    // => goto TOP; label TOP_loop; body; label TOP; cond; if-goto TOP_loop; label EXIT
+    // When an earlier fold already removed the not, the rotated test needs one
+    // again, which still saves the goto. Returns where to continue, or -1 if
+    // top does not start such a loop.
+    private int rotateLoop(VMBuffer in, int top, int to, VMBuffer out) {
+        String topLabel = in.names[top];
+        if (referenceCount(topLabel) != 1) {
+            return -1;
+        }
+
+        int back = lastReference.get(topLabel);
+        if (back <= top || back + 1 >= to || in.ops[back] != Opcode.GOTO || in.ops[back + 1] != Opcode.LABEL) {
+            return -1;
+        }
+
+        String exitLabel = in.names[back + 1];
+        if (referenceCount(exitLabel) != 1) {
+            return -1;
+        }
+
+        int test = lastReference.get(exitLabel);
+        if (test <= top + 1 || test >= back || in.ops[test] != Opcode.IF_GOTO) {
+            return -1;
+        }
+        boolean negated = in.ops[test - 1] == NOT;
+        if (!isBoolean(in, top + 1, negated ? test - 1 : test)) {
+            return -1;
+        }
+
+        String bodyLabel = topLabel + "_loop";
+        // the jumps and labels belong to the while, not to the code copied before them
+        out.setSourceLine(in.lines[top]);
+        out.add(Opcode.GOTO, null, 0, topLabel);
+        out.add(Opcode.LABEL, null, 0, bodyLabel);
+        restructure(in, test + 1, back, out);
+        out.setSourceLine(in.lines[top]);
+        out.add(Opcode.LABEL, null, 0, topLabel);
+        if (negated) {
+            restructure(in, top + 1, test - 1, out);
+            out.setSourceLine(in.lines[test]);
+        } else {
+            restructure(in, top + 1, test, out);
+            out.setSourceLine(in.lines[test]);
+            out.add(NOT, null, 0, null);
+        }
+        out.add(Opcode.IF_GOTO, null, 0, bodyLabel);
+        out.setSourceLine(in.lines[back + 1]);
+        out.add(Opcode.LABEL, null, 0, exitLabel);
+
+        return back + 2;
+    }
+
+    // not; if-goto ELSE; then; goto END; label ELSE; else; label END
+    // => if-goto ELSE; else; goto END; label ELSE; then; label END
+    // ELSE now labels the then part. Only done when there is an else part,
+    // otherwise the goto costs as much as the not it saves. Returns the
+    // position of label END, or -1 if not does not start such a branch.
+    private int invertBranch(VMBuffer in, int from, int not, int to, VMBuffer out) {
+        if (!in.is(not + 1, Opcode.IF_GOTO) || !isBoolean(in, from, not)) {
+            return -1;
+        }
+
+        String elseLabel = in.names[not + 1];
+        int elseStart = labelAt(elseLabel);
+        if (referenceCount(elseLabel) != 1 || elseStart <= not + 2 || elseStart >= to
+                || in.ops[elseStart - 1] != Opcode.GOTO) {
+            return -1;
+        }
+
+        String endLabel = in.names[elseStart - 1];
+        int end = labelAt(endLabel);
+        if (end <= elseStart + 1 || end >= to) {
+            return -1;
+        }
+
+        out.setSourceLine(in.lines[not + 1]);
+        out.add(Opcode.IF_GOTO, null, 0, elseLabel);
+        restructure(in, elseStart + 1, end, out);
+        out.setSourceLine(in.lines[elseStart - 1]);
+        out.add(Opcode.GOTO, null, 0, endLabel);
+        out.setSourceLine(in.lines[elseStart]);
+        out.add(Opcode.LABEL, null, 0, elseLabel);
+        restructure(in, not + 2, elseStart - 1, out);
+
+        return end;
+    }
+
+    // True if the value the commands in [from, end) leave on top of the stack
+    // is always 0 or -1: a comparison, a constant 0 or -1, or not/and/or of such values.
+    private static boolean isBoolean(VMBuffer in, int from, int end) {
+        int last = end - 1;
+        if (last < from) {
+            return false;
+        }
+
+        int op = in.ops[last];
+        if (op == EQ || op == GT || op == LT) {
+            return true;
+        }
+        if (in.is(last, Opcode.PUSH, Segment.CONSTANT, 0)) {
+            return true;
+        }
+        if (op == NEG) {
+            return last - 1 >= from && in.is(last - 1, Opcode.PUSH, Segment.CONSTANT, 1);
+        }
+        if (op == NOT) {
+            return isBoolean(in, from, last);
+        }
+        if (op == AND || op == OR) {
+            int right = start(in, from, last);
+            return right > from && isBoolean(in, from, last) && isBoolean(in, from, right);
+        }
+        return false;
+    }
+
+    // Returns where the commands that compute the value on top of the stack at
+    // end start, or -1 if that isn't plain expression code within [from, end).
+    private static int start(VMBuffer in, int from, int end) {
+        int needed = 1;
+
+        for (int i = end - 1; i >= from; i--) {
+            int op = in.ops[i];
+
+            if (op == NEG || op == NOT) {
+                continue;
+            } else if (op < Opcode.PUSH) {
+                // binary arithmetic
+                needed++;
+            } else if (op == Opcode.PUSH) {
+                needed--;
+            } else if (op == Opcode.POP) {
+                needed++;
+            } else if (op == Opcode.CALL) {
+                needed += in.values[i] - 1;
+            } else {
+                return -1;
+            }
+
+            if (needed == 0) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void cleanJumps(VMBuffer in, VMBuffer out) {
+        index(in);
+
+        int i = 0;
+        while (i < in.size) {
+            int op = in.ops[i];
+
+            if (op == Opcode.LABEL && referenceCount(in.names[i]) == 0) {
+                i++;
+                continue;
+            }
+
+            if (op == Opcode.GOTO || op == Opcode.IF_GOTO) {
+                String target = jumpTarget(in, in.names[i]);
+
+                if (op == Opcode.GOTO && fallsThroughTo(in, i + 1, target)) {
+                    i++;
+                    continue;
+                }
+
+                out.setSourceLine(in.lines[i]);
+                out.add(op, null, 0, target);
+            } else {
+                out.add(in, i);
+            }
+            i++;
+
+            if (op == Opcode.GOTO || op == Opcode.RETURN) {
+                // nothing reaches the commands before the next label
+                while (i < in.size && in.ops[i] != Opcode.LABEL && in.ops[i] != Opcode.FUNCTION) {
+                    i++;
+                }
+            }
+        }
+    }
+
+    // follows a label that is immediately followed by a goto
+    private String jumpTarget(VMBuffer in, String label) {
+        int position = labelAt(label);
+        int next = position + 1;
+        while (position >= 0 && next < in.size && in.ops[next] == Opcode.LABEL) {
+            next++;
+        }
+
+        if (position >= 0 && in.is(next, Opcode.GOTO) && !in.names[next].equals(label)) {
+            return in.names[next];
+        }
+        return label;
+    }
+
+    // true if only labels, one of them target, stand between i and the next command
+    private static boolean fallsThroughTo(VMBuffer in, int i, String target) {
+        for (; i < in.size && in.ops[i] == Opcode.LABEL; i++) {
+            if (in.names[i].equals(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
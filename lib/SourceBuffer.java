@@ -0,0 +1,90 @@
+package lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Random access view over the text of a jack source, either a char array or
+ * the raw bytes of a memory-mapped file. Mapped sources are only scanned as
+ * bytes when they are plain ASCII, so every byte is exactly one char.
+ */
+public final class SourceBuffer {
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    private final char[] chars;
+    private final ByteBuffer bytes;
+    private final int length;
+
+    private SourceBuffer(char[] chars, ByteBuffer bytes, int length) {
+        this.chars = chars;
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public static SourceBuffer of(char[] chars, int length) {
+        return new SourceBuffer(chars, null, length);
+    }
+
+    public static SourceBuffer read(Reader reader) throws IOException {
+        char[] buffer = new char[READ_CHUNK_SIZE];
+        int n = 0;
+        int read;
+
+        while ((read = reader.read(buffer, n, buffer.length - n)) != -1) {
+            n += read;
+            if (n == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+
+        return of(buffer, n);
+    }
+
+    public static SourceBuffer map(File file) throws IOException {
+        MappedByteBuffer mapped;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int length = mapped.limit();
+        for (int i = 0; i < length; i++) {
+            if (mapped.get(i) < 0) {
+                // not ASCII, decode the same way FileReader would
+                CharBuffer decoded = Charset.defaultCharset().decode(mapped);
+                char[] chars = new char[decoded.remaining()];
+                decoded.get(chars);
+                return of(chars, chars.length);
+            }
+        }
+
+        return new SourceBuffer(null, mapped, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        return bytes != null ? (char) bytes.get(index) : chars[index];
+    }
+
+    public String substring(int start, int end) {
+        if (bytes == null) {
+            return new String(chars, start, end - start);
+        }
+
+        byte[] ascii = new byte[end - start];
+        bytes.get(start, ascii);
+        return new String(ascii, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,60 @@
+package lib;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Which line of the Jack source each line of a .vm file was compiled from.
+ * Only the lines where the source line changes are kept: each run of VM
+ * lines up to the next change comes from the same Jack line. Line 0 stands
+ * for code the compiler made up, such as the string pool function.
+ */
+public final class SourceMap {
+    private int size = 0;
+    // first VM line of each run and the Jack line it comes from, both from 1
+    private int[] vmLines = new int[64];
+    private int[] jackLines = new int[64];
+
+    void add(int vmLine, int jackLine) {
+        if (size > 0 && vmLines[size - 1] == vmLine) {
+            // nothing was written for the previous line
+            size--;
+        }
+        if (size > 0 && jackLines[size - 1] == jackLine) {
+            return;
+        }
+
+        if (size == vmLines.length) {
+            vmLines = Arrays.copyOf(vmLines, size * 2);
+            jackLines = Arrays.copyOf(jackLines, size * 2);
+        }
+        vmLines[size] = vmLine;
+        jackLines[size] = jackLine;
+        size++;
+    }
+
+    // Returns the Jack line that VM line vmLine was compiled from, or 0 if none.
+    public int jackLine(int vmLine) {
+        int low = 0;
+        int high = size - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (vmLines[middle] <= vmLine) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return high >= 0 ? jackLines[high] : 0;
+    }
+
+    // Writes one "<vm line> <jack line>" line for each run.
+    public void write(Writer output) throws IOException {
+        for (int i = 0; i < size; i++) {
+            output.write(vmLines[i] + " " + jackLines[i] + "\n");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package lib;
+
+import java.util.List;
+
+/**
+ * A Jack statement, as parsed by the compilation engine for CodeGenerator.
+ * Like Expression, nodes are tagged with their kind and only use the fields
+ * that kind needs.
+ */
+final class Statement {
+    enum Kind {
+        LET,
+        IF,
+        WHILE,
+        DO,
+        RETURN;
+    }
+
+    final Kind kind;
+    // LET target
+    Segment segment;
+    int index;
+    // LET target subscript, null unless it is an array element
+    Expression subscript;
+    // LET value, IF/WHILE condition, DO call, RETURN value (null for a bare return)
+    Expression expression;
+    // IF then part and WHILE body
+    List<Statement> statements;
+    // IF else part, null if there is none
+    List<Statement> elseStatements;
+    // source line the statement starts on
+    int line;
+
+    private Statement(Kind kind) {
+        this.kind = kind;
+    }
+
+    static Statement let(Segment segment, int index, Expression subscript, Expression value) {
+        Statement statement = new Statement(Kind.LET);
+        statement.segment = segment;
+        statement.index = index;
+        statement.subscript = subscript;
+        statement.expression = value;
+        return statement;
+    }
+
+    static Statement ifElse(Expression condition, List<Statement> statements, List<Statement> elseStatements) {
+        Statement statement = new Statement(Kind.IF);
+        statement.expression = condition;
+        statement.statements = statements;
+        statement.elseStatements = elseStatements;
+        return statement;
+    }
+
+    static Statement loop(Expression condition, List<Statement> statements) {
+        Statement statement = new Statement(Kind.WHILE);
+        statement.expression = condition;
+        statement.statements = statements;
+        return statement;
+    }
+
+    static Statement call(Expression call) {
+        Statement statement = new Statement(Kind.DO);
+        statement.expression = call;
+        return statement;
+    }
+
+    static Statement ret(Expression value) {
+        Statement statement = new Statement(Kind.RETURN);
+        statement.expression = value;
+        return statement;
+    }
+}
@@ -0,0 +1,38 @@
+package lib;
+
+import java.util.List;
+
+/**
+ * One parsed subroutine: everything CodeGenerator needs to write its VM
+ * function. The compilation engine hands each one over as soon as it has
+ * been parsed, so only one subroutine of a class is held at a time.
+ */
+final class Subroutine {
+    final String className;
+    // VM function name, className.subroutineName
+    final String name;
+    // CONSTRUCTOR, FUNCTION or METHOD
+    final KeyWord kind;
+    final int nLocals;
+    // size of the object a constructor allocates
+    final int nFields;
+    final List<Statement> statements;
+    // number of the first label the subroutine's code uses. Labels are numbered
+    // across the class in source order, so this is the number of labels all the
+    // subroutines before it use, which lets each one be generated on its own.
+    final int labelBase;
+    // source line of the declaration
+    final int line;
+
+    Subroutine(String className, String name, KeyWord kind, int nLocals, int nFields, List<Statement> statements,
+            int labelBase, int line) {
+        this.className = className;
+        this.name = name;
+        this.kind = kind;
+        this.nLocals = nLocals;
+        this.nFields = nFields;
+        this.statements = statements;
+        this.labelBase = labelBase;
+        this.line = line;
+    }
+}
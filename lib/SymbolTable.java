@@ -1,7 +1,6 @@
 package lib;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 enum Kind {
     STATIC,
@@ -16,76 +15,153 @@ enum Kind {
     }
 }
 
+/**
+ * Names of one scope, in an open-addressing hash table with linear probing.
+ * Entries are kept in parallel arrays, so define doesn't allocate until the
+ * table has to grow, and the number of each kind is a counter.
+ */
 public class SymbolTable {
-    private static class SymbolTableEntry {
-        String type;
-        Kind kind;
-        int index;
-
-        SymbolTableEntry(String type, Kind kind, int index) {
-            this.type = type;
-            this.kind = kind;
-            this.index = index;
-        }
+    /**
+     * Result of lookup. The same object is returned on every call, so it is
+     * only valid until the next lookup on the table.
+     */
+    public static class Symbol {
+        public Kind kind;
+        public String type;
+        public int index;
     }
 
-    private Map<Kind, Integer> indices = new HashMap<>();
-    private Map<String, SymbolTableEntry> table = new HashMap<>();
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Symbol symbol = new Symbol();
+    // next index of each kind, by ordinal
+    private final int[] counts = new int[Kind.values().length];
+
+    // slots are free where names is null; capacity is a power of two
+    private String[] names = new String[INITIAL_CAPACITY];
+    private String[] types = new String[INITIAL_CAPACITY];
+    private Kind[] kinds = new Kind[INITIAL_CAPACITY];
+    private int[] indices = new int[INITIAL_CAPACITY];
+    private int size = 0;
 
     public SymbolTable() {
         reset();
     }
 
     public void reset() {
-        indices.clear();
-        table.clear();
+        Arrays.fill(counts, 0);
 
-        for (Kind kind : new Kind[] { Kind.STATIC, Kind.FIELD, Kind.VAR, Kind.ARG }) {
-            indices.put(kind, 0);
+        if (size > 0) {
+            Arrays.fill(names, null);
+            Arrays.fill(types, null);
+            Arrays.fill(kinds, null);
+            size = 0;
         }
     }
 
     public void define(String name, String type, Kind kind) {
-        Integer index = indices.get(kind);
+        int slot = find(name);
 
-        if (table.get(name) != null) {
+        if (names[slot] != null) {
             throw new Error("Identifier '" + name + "' already defined");
         }
 
-        table.put(name, new SymbolTableEntry(type, kind, index));
-        indices.put(kind, index + 1);
+        // keep the table at most three quarters full
+        if ((size + 1) * 4 > names.length * 3) {
+            grow();
+            slot = find(name);
+        }
+
+        names[slot] = name;
+        types[slot] = type;
+        kinds[slot] = kind;
+        indices[slot] = counts[kind.ordinal()]++;
+        size++;
     }
 
     public int varCount(Kind kind) {
-        return (int) table.values().stream().filter(entry -> entry.kind == kind).count();
+        return counts[kind.ordinal()];
+    }
+
+    /**
+     * Returns the kind, type and index of name together, or null if it isn't
+     * defined in this table.
+     */
+    public Symbol lookup(String name) {
+        int slot = find(name);
+
+        if (names[slot] == null) {
+            return null;
+        }
+
+        symbol.kind = kinds[slot];
+        symbol.type = types[slot];
+        symbol.index = indices[slot];
+        return symbol;
     }
 
     public Kind kindOf(String name) {
-        SymbolTableEntry entry = table.get(name);
-        return entry != null ? entry.kind : Kind.NONE;
+        int slot = find(name);
+        return names[slot] != null ? kinds[slot] : Kind.NONE;
     }
 
     public String typeOf(String name) {
-        SymbolTableEntry entry = table.get(name);
-        return entry != null ? entry.type : null;
+        int slot = find(name);
+        return names[slot] != null ? types[slot] : null;
     }
 
     public int indexOf(String name) {
-        SymbolTableEntry entry = table.get(name);
-        return entry != null ? entry.index : -1;
+        int slot = find(name);
+        return names[slot] != null ? indices[slot] : -1;
+    }
+
+    // slot holding name, or the free slot where it would go
+    private int find(String name) {
+        int mask = names.length - 1;
+        int hash = name.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (names[slot] != null && !names[slot].equals(name)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldNames = names;
+        String[] oldTypes = types;
+        Kind[] oldKinds = kinds;
+        int[] oldIndices = indices;
+
+        int capacity = oldNames.length * 2;
+        names = new String[capacity];
+        types = new String[capacity];
+        kinds = new Kind[capacity];
+        indices = new int[capacity];
+
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = find(oldNames[i]);
+                names[slot] = oldNames[i];
+                types[slot] = oldTypes[i];
+                kinds[slot] = oldKinds[i];
+                indices[slot] = oldIndices[i];
+            }
+        }
     }
 
     public void print() {
         System.out.println("      Name |     Type |     Kind |   #");
         System.out.println("--------------------------------------");
 
-        for (String key : table.keySet()) {
-            SymbolTableEntry entry = table.get(key);
-            System.out.printf("%10s | %8s | %8s | %3d\n",
-                    key,
-                    entry.type.toString(),
-                    entry.kind.toString(),
-                    entry.index);
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null) {
+                System.out.printf("%10s | %8s | %8s | %3d\n",
+                        names[i],
+                        types[i],
+                        kinds[i].toString(),
+                        indices[i]);
+            }
         }
     }
 }
@@ -37,21 +37,37 @@ enum KeyWord {
     }
 }
 
-public class Token implements Cloneable {
+/**
+ * A mutable token that the tokenizer overwrites in place. Values are kept in
+ * primitive fields; identifiers are interned by the tokenizer and string
+ * constants are only sliced out of the source when they are asked for, so
+ * scanning a token doesn't allocate.
+ */
+public class Token {
     TokenType type;
     KeyWord keyWord;
-    Character symbol;
+    char symbol;
     String identifier;
-    Integer intVal;
-    String stringVal;
+    int intVal;
+    // where the token starts in the source
+    int offset;
+    // set on the copies of the last token that stand in once the source is exhausted
+    boolean pastEnd;
+
+    // string constant text is source[start, end)
+    SourceBuffer source;
+    int start;
+    int end;
+    private String stringVal;
 
     public void setKeyWord(KeyWord keyWord) {
         this.type = TokenType.KEYWORD;
         this.keyWord = keyWord;
-        this.symbol = null;
+        this.symbol = 0;
         this.identifier = null;
-        this.intVal = null;
+        this.intVal = 0;
         this.stringVal = null;
+        this.pastEnd = false;
     }
 
     public void setSymbol(char symbol) {
@@ -59,44 +75,63 @@ public class Token implements Cloneable {
         this.keyWord = null;
         this.symbol = symbol;
         this.identifier = null;
-        this.intVal = null;
+        this.intVal = 0;
         this.stringVal = null;
+        this.pastEnd = false;
     }
 
     public void setIdentifier(String identifier) {
         this.type = TokenType.IDENTIFIER;
         this.keyWord = null;
-        this.symbol = null;
+        this.symbol = 0;
         this.identifier = identifier;
-        this.intVal = null;
+        this.intVal = 0;
         this.stringVal = null;
+        this.pastEnd = false;
     }
 
     public void setIntVal(int intVal) {
         this.type = TokenType.INT_CONST;
         this.keyWord = null;
-        this.symbol = null;
+        this.symbol = 0;
         this.identifier = null;
         this.intVal = intVal;
         this.stringVal = null;
+        this.pastEnd = false;
     }
 
-    public void setStringVal(String stringVal) {
+    public void setStringVal(SourceBuffer source, int start, int end) {
         this.type = TokenType.STRING_CONST;
         this.keyWord = null;
-        this.symbol = null;
+        this.symbol = 0;
         this.identifier = null;
-        this.intVal = null;
-        this.stringVal = stringVal;
+        this.intVal = 0;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.stringVal = null;
+        this.pastEnd = false;
     }
 
-    @Override
-    public Object clone() {
-        try {
-            return super.clone();
-        } catch (CloneNotSupportedException e) {
-            throw new AssertionError();
+    public void copyFrom(Token other) {
+        this.type = other.type;
+        this.keyWord = other.keyWord;
+        this.symbol = other.symbol;
+        this.identifier = other.identifier;
+        this.intVal = other.intVal;
+        this.source = other.source;
+        this.start = other.start;
+        this.end = other.end;
+        this.stringVal = other.stringVal;
+        this.offset = other.offset;
+        this.pastEnd = other.pastEnd;
+    }
+
+    public String stringVal() {
+        if (stringVal == null && type == TokenType.STRING_CONST) {
+            stringVal = source.substring(start, end);
         }
+        return stringVal;
     }
 
     public String toString() {
@@ -110,9 +145,9 @@ public class Token implements Cloneable {
             case INT_CONST:
                 return String.valueOf(intVal);
             case STRING_CONST:
-                return stringVal;
+                return stringVal();
             default:
                 return null;
         }
     }
-}
\ No newline at end of file
+}
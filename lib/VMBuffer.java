@@ -0,0 +1,181 @@
+package lib;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records VM commands in memory instead of writing them, so they can be
+ * inspected, rewritten and replayed on another VMWriter later. Commands are
+ * kept in parallel arrays indexed by position; the operand arrays only hold
+ * something meaningful for the opcodes that use them.
+ */
+public class VMBuffer extends VMWriter {
+    private static final Command[] COMMANDS = Command.values();
+
+    int size = 0;
+    int[] ops = new int[64];
+    Segment[] segments = new Segment[64];
+    // push/pop index, call argument count or function local count
+    int[] values = new int[64];
+    // label, call or function name
+    String[] names = new String[64];
+    // Jack source line each command was compiled from
+    int[] lines = new int[64];
+    private int sourceLine = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(segments, 0, size, null);
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+    }
+
+    void add(int op, Segment segment, int value, String name) {
+        if (size == ops.length) {
+            int capacity = size * 2;
+            ops = Arrays.copyOf(ops, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            values = Arrays.copyOf(values, capacity);
+            names = Arrays.copyOf(names, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+
+        ops[size] = op;
+        segments[size] = segment;
+        values[size] = value;
+        names[size] = name;
+        lines[size] = sourceLine;
+        size++;
+    }
+
+    void removeLast() {
+        size--;
+        segments[size] = null;
+        names[size] = null;
+    }
+
+    // copies command i of another buffer; commands added after it without a
+    // source of their own are put down to the same line
+    void add(VMBuffer from, int i) {
+        sourceLine = from.lines[i];
+        add(from.ops[i], from.segments[i], from.values[i], from.names[i]);
+    }
+
+    boolean is(int i, int op) {
+        return i < size && ops[i] == op;
+    }
+
+    boolean is(int i, int op, Segment segment, int value) {
+        return i < size && ops[i] == op && segments[i] == segment && values[i] == value;
+    }
+
+    /**
+     * Writes commands [from, to) to vmWriter, laid out like the compiler's own
+     * text output: function declarations unindented and their bodies indented.
+     */
+    void replay(VMWriter vmWriter, int from, int to) throws IOException {
+        int line = -1;
+
+        for (int i = from; i < to; i++) {
+            int op = ops[i];
+
+            if (lines[i] != line) {
+                line = lines[i];
+                vmWriter.setSourceLine(line);
+            }
+
+            if (op < COMMANDS.length) {
+                vmWriter.writeArithmetic(COMMANDS[op]);
+            } else if (op == Opcode.PUSH) {
+                vmWriter.writePush(segments[i], values[i]);
+            } else if (op == Opcode.POP) {
+                vmWriter.writePop(segments[i], values[i]);
+            } else if (op == Opcode.LABEL) {
+                vmWriter.writeLabel(names[i]);
+            } else if (op == Opcode.GOTO) {
+                vmWriter.writeGoto(names[i]);
+            } else if (op == Opcode.IF_GOTO) {
+                vmWriter.writeIf(names[i]);
+            } else if (op == Opcode.CALL) {
+                vmWriter.writeCall(names[i], values[i]);
+            } else if (op == Opcode.FUNCTION) {
+                vmWriter.setIndentationSize(0);
+                vmWriter.writeFunction(names[i], values[i]);
+                vmWriter.setIndentationSize(4);
+            } else if (op == Opcode.RETURN) {
+                vmWriter.writeReturn();
+            }
+        }
+    }
+
+    public void replay(VMWriter vmWriter) throws IOException {
+        replay(vmWriter, 0, size);
+        vmWriter.setIndentationSize(0);
+    }
+
+    @Override
+    void setSourceLine(int line) {
+        sourceLine = line;
+    }
+
+    @Override
+    void setIndentationSize(int identationSize) {
+        // layout is decided on replay
+    }
+
+    @Override
+    void writePush(Segment segment, int index) {
+        add(Opcode.PUSH, segment, index, null);
+    }
+
+    @Override
+    void writePop(Segment segment, int index) {
+        add(Opcode.POP, segment, index, null);
+    }
+
+    @Override
+    void writeArithmetic(Command command) {
+        add(command.ordinal(), null, 0, null);
+    }
+
+    @Override
+    void writeLabel(String label) {
+        add(Opcode.LABEL, null, 0, label);
+    }
+
+    @Override
+    void writeGoto(String label) {
+        add(Opcode.GOTO, null, 0, label);
+    }
+
+    @Override
+    void writeIf(String label) {
+        add(Opcode.IF_GOTO, null, 0, label);
+    }
+
+    @Override
+    void writeCall(String name, int nArgs) {
+        add(Opcode.CALL, null, nArgs, name);
+    }
+
+    @Override
+    void writeFunction(String name, int nVars) throws IOException {
+        add(Opcode.FUNCTION, null, nVars, name);
+    }
+
+    @Override
+    void writeReturn() {
+        add(Opcode.RETURN, null, 0, null);
+    }
+
+    @Override
+    void flush() throws IOException {
+    }
+
+    @Override
+    void close() throws IOException {
+    }
+}
@@ -13,9 +13,11 @@ enum Segment {
     POINTER,
     TEMP;
 
+    private final String text = name().toLowerCase();
+
     @Override
     public String toString() {
-        return name().toLowerCase();
+        return text;
     }
 }
 
@@ -30,7 +32,7 @@ enum Command {
     OR,
     NOT;
 
-    public static Command fromBinaryOperator(Character binOp) {
+    public static Command fromBinaryOperator(char binOp) {
         switch (binOp) {
             case '+':
                 return Command.ADD;
@@ -51,7 +53,7 @@ enum Command {
         }
     }
     
-    public static Command fromUnaryOperator(Character unaryOp) {
+    public static Command fromUnaryOperator(char unaryOp) {
         switch (unaryOp) {
             case '-':
                 return Command.NEG;
@@ -62,25 +64,144 @@ enum Command {
         }
     }
 
+    private final String text = name().toLowerCase();
+
     @Override
     public String toString() {
-        return name().toLowerCase();
+        return text;
+    }
+}
+
+// Numbering shared by the writers that don't produce text: the Command
+// ordinals for arithmetic, then one opcode per other kind of command.
+final class Opcode {
+    static final int PUSH = Command.values().length;
+    static final int POP = PUSH + 1;
+    static final int LABEL = PUSH + 2;
+    static final int GOTO = PUSH + 3;
+    static final int IF_GOTO = PUSH + 4;
+    static final int CALL = PUSH + 5;
+    static final int FUNCTION = PUSH + 6;
+    static final int RETURN = PUSH + 7;
+
+    private Opcode() {
     }
 }
 
+/**
+ * Writes VM commands as text. Lines are assembled in a private char buffer
+ * that is handed to the underlying Writer only when it fills up or on
+ * flush(), so emitting a command doesn't create any Strings.
+ */
 public class VMWriter {
-    private final Writer output;
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] SPACES = "                ".toCharArray();
+
+    private Writer output;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int length = 0;
     private int identationSize = 0;
 
+    // lines written so far, for the source map
+    private int lineCount = 0;
+    private SourceMap sourceMap;
+
     public VMWriter(Writer output) {
         this.output = output;
     }
 
-    private void write(String str) throws IOException {
-        for (int i = 0; i < identationSize; i++) {
-            output.append(" ");
+    // Drops anything not yet flushed and writes to output from now on.
+    void reset(Writer output) {
+        this.output = output;
+        length = 0;
+        identationSize = 0;
+        lineCount = 0;
+        sourceMap = null;
+    }
+
+    // Records in sourceMap which source line each line written from now on comes from.
+    public void setSourceMap(SourceMap sourceMap) {
+        this.sourceMap = sourceMap;
+    }
+
+    // The commands written from now on are for this line of the Jack source.
+    void setSourceLine(int line) {
+        if (sourceMap != null) {
+            sourceMap.add(lineCount + 1, line);
+        }
+    }
+
+    // for subclasses that emit something other than text
+    VMWriter() {
+        this(Writer.nullWriter());
+    }
+
+    private void ensureCapacity(int n) throws IOException {
+        if (length + n > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        output.write(buffer, 0, length);
+        length = 0;
+    }
+
+    private void append(String str) throws IOException {
+        int n = str.length();
+        if (n > buffer.length) {
+            flushBuffer();
+            output.write(str);
+            return;
+        }
+
+        ensureCapacity(n);
+        str.getChars(0, n, buffer, length);
+        length += n;
+    }
+
+    private void append(char ch) throws IOException {
+        ensureCapacity(1);
+        buffer[length++] = ch;
+    }
+
+    private void append(int value) throws IOException {
+        // 11 chars is enough for any int, sign included
+        ensureCapacity(11);
+
+        if (value < 0) {
+            buffer[length++] = '-';
+            if (value == Integer.MIN_VALUE) {
+                append("2147483648");
+                return;
+            }
+            value = -value;
+        }
+
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void endLine() throws IOException {
+        append('\n');
+        lineCount++;
+    }
+
+    private void indent() throws IOException {
+        for (int n = identationSize; n > 0; n -= SPACES.length) {
+            int chunk = Math.min(n, SPACES.length);
+            ensureCapacity(chunk);
+            System.arraycopy(SPACES, 0, buffer, length, chunk);
+            length += chunk;
         }
-        output.append(str + "\n");
     }
 
     void setIndentationSize(int identationSize) {
@@ -88,45 +209,81 @@ public class VMWriter {
     }
 
     void writePush(Segment segment, int index) throws IOException {
-        write("push " + segment + " " + index);
+        indent();
+        append("push ");
+        append(segment.toString());
+        append(' ');
+        append(index);
+        endLine();
     }
 
     void writePop(Segment segment, int index) throws IOException {
-        write("pop " + segment + " " + index);
+        indent();
+        append("pop ");
+        append(segment.toString());
+        append(' ');
+        append(index);
+        endLine();
     }
 
     void writeArithmetic(Command command) throws IOException {
-        write(command.toString());
+        indent();
+        append(command.toString());
+        endLine();
     }
 
     void writeLabel(String label) throws IOException {
-        int n = identationSize;
-        setIndentationSize(0);
-        write("label " + label);
-        setIndentationSize(n);
+        // labels are never indented
+        append("label ");
+        append(label);
+        endLine();
     }
 
     void writeGoto(String label) throws IOException {
-        write("goto " + label);
+        indent();
+        append("goto ");
+        append(label);
+        endLine();
     }
 
     void writeIf(String label) throws IOException {
-        write("if-goto " + label);
+        indent();
+        append("if-goto ");
+        append(label);
+        endLine();
     }
 
     void writeCall(String name, int nArgs) throws IOException {
-        write("call " + name + " " + nArgs);
+        indent();
+        append("call ");
+        append(name);
+        append(' ');
+        append(nArgs);
+        endLine();
     }
 
     void writeFunction(String name, int nVars) throws IOException {
-        write("function " + name + " " + nVars);
+        indent();
+        append("function ");
+        append(name);
+        append(' ');
+        append(nVars);
+        endLine();
     }
 
     void writeReturn() throws IOException {
-        write("return");
+        indent();
+        append("return");
+        endLine();
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        output.flush();
     }
 
     void close() throws IOException {
+        flushBuffer();
         output.close();
     }
 }